@@ -0,0 +1,118 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time source used to calculate and verify codes.
+ *
+ * @see AuthManager#setClock(AuthClock)
+ * @see Environment#getClock()
+ */
+public interface AuthClock {
+    AuthClock SYSTEM = System::currentTimeMillis;
+
+    /**
+     * @return the current time in milliseconds
+     */
+    long currentTimeMillis();
+
+    /**
+     * Create a clock that reads {@link #SYSTEM} only once per {@code tickMillis}.
+     *
+     * @apiNote Close it to stop the background updater
+     */
+    static Coarse coarse(long tickMillis) {
+        return new Coarse(SYSTEM, tickMillis);
+    }
+
+    /**
+     * Create a clock that only changes by {@link Manual#set(long)} or {@link Manual#advance(long)}
+     */
+    static Manual manual(long timeMillis) {
+        return new Manual(timeMillis);
+    }
+
+    /**
+     * A clock updated by a daemon thread once per tick.
+     * Reading it costs one volatile read.
+     */
+    class Coarse implements AuthClock, Closeable {
+        private final AuthClock source;
+        private final long tickMillis;
+        private final Thread updater;
+        private volatile long time;
+
+        public Coarse(AuthClock source, long tickMillis) {
+            if (tickMillis <= 0) throw new IllegalArgumentException("tickMillis <= 0");
+            this.source = source;
+            this.tickMillis = tickMillis;
+            this.time = source.currentTimeMillis();
+            this.updater = new Thread(this::update, "AuthClock Coarse Updater");
+            this.updater.setDaemon(true);
+            this.updater.start();
+        }
+
+        private void update() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(tickMillis);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+                time = source.currentTimeMillis();
+            }
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return time;
+        }
+
+        @Override
+        public void close() {
+            updater.interrupt();
+        }
+    }
+
+    /**
+     * A clock for tests
+     */
+    class Manual implements AuthClock {
+        private final AtomicLong time;
+
+        public Manual(long time) {
+            this.time = new AtomicLong(time);
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return time.get();
+        }
+
+        public void set(long time) {
+            this.time.set(time);
+        }
+
+        public void advance(long millis) {
+            this.time.addAndGet(millis);
+        }
+    }
+}
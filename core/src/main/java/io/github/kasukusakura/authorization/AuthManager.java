@@ -17,13 +17,22 @@
 package io.github.kasukusakura.authorization;
 
 import io.github.kasukusakura.authorization.internal.AuthManagerImpl;
+import io.github.kasukusakura.authorization.utils.DataOutputUtil;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
 import java.util.Map;
 
 /**
  * The manager that manage all 2FA services.
  */
 public abstract class AuthManager {
+    private static final int KEY_RECORD_V2 = 0xF2;
+
     public abstract Map<String, IAuthorizationService> getAuthorizationServices();
 
     public abstract Map<String, IAuthorizationService.URIDeserializeService> getUriDeserializeServices();
@@ -32,12 +41,158 @@ public abstract class AuthManager {
 
     public abstract IAuthorizationService.URIDeserializeService getUriDeserializeService(String protocol);
 
+    /**
+     * Get service by {@link IAuthorizationService#getId()}
+     */
+    public IAuthorizationService getAuthorizationService(int id) {
+        if (id == 0) return null;
+        for (IAuthorizationService service : getAuthorizationServices().values()) {
+            if (service.getId() == id) return service;
+        }
+        return null;
+    }
+
+    /**
+     * Write {@code key} with its service.
+     * <p>
+     * Format v2: {@code [0xF2][varint service id]}, followed by varint-length name if id is 0,
+     * then {@link IAuthorizationKey#serialize(DataOutput)}
+     *
+     * @see #deserializeKey(DataInput)
+     */
+    public void serializeKey(IAuthorizationKey key, DataOutput output) throws IOException {
+        IAuthorizationService service = key.getService();
+        output.writeByte(KEY_RECORD_V2);
+        DataOutputUtil.writeVarInt(output, service.getId());
+        if (service.getId() == 0) {
+            DataOutputUtil.writeVarString(output, service.getName());
+        }
+        key.serialize(output);
+    }
+
+    /**
+     * Write {@code key} in format v1: {@link DataOutput#writeUTF(String)} of service name,
+     * then {@link IAuthorizationKey#serializeV1(DataOutput)}.
+     * Larger than v2, but readable by older releases, so use it for exported keys.
+     *
+     * @see #deserializeKey(DataInput)
+     */
+    public void serializeKeyV1(IAuthorizationKey key, DataOutput output) throws IOException {
+        output.writeUTF(key.getService().getName());
+        key.serializeV1(output);
+    }
+
+    /**
+     * Read a key written by {@link #serializeKey(IAuthorizationKey, DataOutput)},
+     * or a v1 record written by {@link #serializeKeyV1(IAuthorizationKey, DataOutput)}
+     */
+    public IAuthorizationKey deserializeKey(DataInput input) throws IOException, InvalidKeyException {
+        int head = input.readUnsignedByte();
+        IAuthorizationService service;
+        String name;
+        if (head == KEY_RECORD_V2) {
+            int id = DataOutputUtil.readVarInt(input);
+            if (id == 0) {
+                name = DataOutputUtil.readVarString(input);
+                service = getAuthorizationService(name);
+            } else {
+                name = "#" + id;
+                service = getAuthorizationService(id);
+            }
+        } else {
+            name = DataOutputUtil.readUTF(input, head);
+            service = getAuthorizationService(name);
+        }
+        if (service == null) {
+            throw new IOException("Service not found: " + name);
+        }
+        return service.deserialize(input);
+    }
+
     public abstract boolean registerAuthorizationService(IAuthorizationService service);
 
     public abstract Environment getEnvironment();
 
+    public AuthClock getClock() {
+        return getEnvironment().getClock();
+    }
+
+    /**
+     * Change the clock used by all registered services
+     */
+    public void setClock(AuthClock clock) {
+        getEnvironment().setClock(clock);
+    }
+
+    /**
+     * Reject reused codes of keys from all registered services
+     *
+     * @param ledger {@code null} to accept reused codes
+     * @see Environment#setReplayLedger(ReplayLedger)
+     */
+    public void setReplayLedger(ReplayLedger ledger) {
+        getEnvironment().setReplayLedger(ledger);
+    }
+
+    /**
+     * Write {@code key} with its service into {@code output} at its position
+     *
+     * @throws BufferOverflowException if not enough space, the position is not changed
+     * @see #serializeKey(IAuthorizationKey, DataOutput)
+     */
+    public void serializeKey(IAuthorizationKey key, ByteBuffer output) throws IOException {
+        IAuthorizationService service = key.getService();
+        int start = output.position();
+        try {
+            output.put((byte) KEY_RECORD_V2);
+            DataOutputUtil.writeVarInt(output, service.getId());
+            if (service.getId() == 0) {
+                DataOutputUtil.writeVarString(output, service.getName());
+            }
+            key.serialize(output);
+        } catch (BufferOverflowException e) {
+            output.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Read a key from {@code input} in place, the position of buffer is moved after the key
+     *
+     * @see #deserializeKey(DataInput)
+     */
+    public IAuthorizationKey deserializeKey(ByteBuffer input) throws IOException, InvalidKeyException {
+        int start = input.position();
+        if ((input.get() & 0xFF) != KEY_RECORD_V2) {
+            input.position(start);
+            return deserializeKey(DataOutputUtil.asDataInput(input));
+        }
+        int id = DataOutputUtil.readVarInt(input);
+        String name;
+        IAuthorizationService service;
+        if (id == 0) {
+            name = DataOutputUtil.readVarString(input);
+            service = getAuthorizationService(name);
+        } else {
+            name = "#" + id;
+            service = getAuthorizationService(id);
+        }
+        if (service == null) {
+            throw new IOException("Service not found: " + name);
+        }
+        return service.deserialize(input);
+    }
+
     public static AuthManager newInstance() {
         return new AuthManagerImpl();
     }
 
+    /**
+     * @param hotp register the counter based {@code hotp} service.
+     *             Leave it out if the application has no way to advance the counters
+     */
+    public static AuthManager newInstance(boolean hotp) {
+        return new AuthManagerImpl(true, hotp);
+    }
+
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization;
+
+import io.github.kasukusakura.authorization.internal.BatchVerifierImpl;
+
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Verify many (key, code) pairs in one call.
+ * <p>
+ * The clock is read at most once per batch and keys sharing the same
+ * algorithm and period are verified together.
+ * <p>
+ * Keys of other services are checked by {@link IAuthorizationKey#checkValid(CharSequence, long)}.
+ * Keys that are not time based, such as counter based HOTP keys, ignore the given time there.
+ */
+public abstract class BatchVerifier {
+    protected final AuthClock clock;
+
+    protected BatchVerifier(AuthClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Verify {@code codes[i]} against {@code keys[i]} at {@code time}
+     * and write the result into {@code results[i]}
+     *
+     * @param time the timestamp in milliseconds
+     */
+    public abstract void verify(IAuthorizationKey[] keys, CharSequence[] codes, long time, boolean[] results);
+
+    /**
+     * Verify {@code codes[i]} against {@code keys[i]} at {@code time}
+     * and set bit {@code i} of {@code results} if matched.
+     * Bits of unmatched pairs are cleared.
+     *
+     * @param time the timestamp in milliseconds
+     */
+    public abstract void verify(IAuthorizationKey[] keys, CharSequence[] codes, long time, BitSet results);
+
+    public void verify(IAuthorizationKey[] keys, CharSequence[] codes, boolean[] results) {
+        verify(keys, codes, clock.currentTimeMillis(), results);
+    }
+
+    public void verify(IAuthorizationKey[] keys, CharSequence[] codes, BitSet results) {
+        verify(keys, codes, clock.currentTimeMillis(), results);
+    }
+
+    /**
+     * Create a verifier running on the caller thread
+     */
+    public static BatchVerifier newInstance() {
+        return newInstance(AuthClock.SYSTEM);
+    }
+
+    public static BatchVerifier newInstance(AuthClock clock) {
+        return new BatchVerifierImpl(clock, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a verifier that spreads batches larger than
+     * {@code parallelThreshold} across {@code pool}
+     */
+    public static BatchVerifier newInstance(ForkJoinPool pool, int parallelThreshold) {
+        return newInstance(AuthClock.SYSTEM, pool, parallelThreshold);
+    }
+
+    public static BatchVerifier newInstance(AuthClock clock, ForkJoinPool pool, int parallelThreshold) {
+        return new BatchVerifierImpl(clock, pool, parallelThreshold);
+    }
+}
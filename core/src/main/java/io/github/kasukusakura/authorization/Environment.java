@@ -26,4 +26,36 @@ public interface Environment {
     String get(String key);
 
     void put(String key, String value);
+
+    /**
+     * The clock used by services of this environment
+     */
+    default AuthClock getClock() {
+        return AuthClock.SYSTEM;
+    }
+
+    /**
+     * Replace the clock used by services of this environment.
+     * Ignored by default, environments that keep a clock override both methods.
+     */
+    default void setClock(AuthClock clock) {
+    }
+
+    /**
+     * The ledger that keys of this environment record accepted codes into
+     *
+     * @return {@code null} if used codes are not rejected, the default
+     */
+    default ReplayLedger getReplayLedger() {
+        return null;
+    }
+
+    /**
+     * Let keys of this environment reject reused codes in their {@code checkValid} methods.
+     * Ignored by default, environments that keep a ledger override both methods.
+     *
+     * @param ledger {@code null} to accept reused codes
+     */
+    default void setReplayLedger(ReplayLedger ledger) {
+    }
 }
@@ -16,9 +16,14 @@
 
 package io.github.kasukusakura.authorization;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.Map;
 
@@ -41,6 +46,29 @@ public interface IAuthorizationKey {
      */
     public void serialize(DataOutput output) throws IOException;
 
+    /**
+     * Serialize this key into {@code output} at its position, same format as {@link #serialize(DataOutput)}
+     *
+     * @throws BufferOverflowException if not enough space, the position is not changed
+     * @see IAuthorizationService#deserialize(ByteBuffer)
+     */
+    public default void serialize(ByteBuffer output) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        serialize(new DataOutputStream(data));
+        output.put(data.toByteArray());
+    }
+
+    /**
+     * Serialize this key in the format used before the compact v2 format, for exported keys
+     * that older releases must be able to import.
+     * Same as {@link #serialize(DataOutput)} if the format of this key never changed.
+     *
+     * @see AuthManager#serializeKeyV1(IAuthorizationKey, DataOutput)
+     */
+    public default void serializeV1(DataOutput output) throws IOException {
+        serialize(output);
+    }
+
     /**
      * Check a given code can match this key or not
      *
@@ -48,6 +76,84 @@ public interface IAuthorizationKey {
      */
     public boolean checkValid(String input);
 
+    /**
+     * Check a given code can match this key or not
+     *
+     * @see #checkValid(String)
+     */
+    public default boolean checkValid(CharSequence input) {
+        return input != null && checkValid(input.toString());
+    }
+
+    /**
+     * Check a given code can match this key at the given time or not.
+     * Keys that are not time based check at the current state by default.
+     *
+     * @param time the timestamp in milliseconds
+     * @see #checkValid(String)
+     */
+    public default boolean checkValid(CharSequence input, long time) {
+        return checkValid(input);
+    }
+
+    /**
+     * Find the time frame that {@code input} was issued for
+     *
+     * @param time the timestamp in milliseconds
+     * @return the frame, or -1 if not matched or not supported
+     * @see ReplayLedger
+     */
+    public default long findValidFrame(CharSequence input, long time) {
+        return -1;
+    }
+
+    /**
+     * Release the resources kept for this key once it is deleted permanently,
+     * such as persistent counters
+     */
+    public default void release() {
+    }
+
+    /**
+     * An object identifying the secret and code parameters of this key.
+     * Instances loaded again from the same data return equal identities.
+     *
+     * @return {@code this} if not supported
+     * @see ReplayLedger
+     */
+    public default Object getIdentity() {
+        return this;
+    }
+
+    /**
+     * The time when codes of {@code frame} can no longer be accepted
+     *
+     * @return {@link Long#MAX_VALUE} if not supported
+     * @see #findValidFrame(CharSequence, long)
+     */
+    public default long frameExpireTime(long frame) {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Check the code stored in {@code input[offset, offset + length)}
+     *
+     * @see #checkValid(String)
+     */
+    public default boolean checkValid(char[] input, int offset, int length) {
+        return checkValid(new String(input, offset, length));
+    }
+
+    /**
+     * Check the ASCII code stored between position and limit of {@code input}.
+     * The position of {@code input} will not be changed.
+     *
+     * @see #checkValid(String)
+     */
+    public default boolean checkValid(ByteBuffer input) {
+        return checkValid(StandardCharsets.US_ASCII.decode(input.duplicate()).toString());
+    }
+
     /**
      * Serialize this key as URI format
      *
@@ -72,6 +178,72 @@ public interface IAuthorizationKey {
         return null;
     }
 
+    /**
+     * Calculate a valid key code at the given time.
+     *
+     * @param time the timestamp in milliseconds
+     * @see #calcValidKey()
+     * @see #keyNextInvalidatedTime(long)
+     */
+    public default String calcValidKey(long time) {
+        return calcValidKey();
+    }
+
+    /**
+     * The number of chars written by {@code renderValidKey}
+     *
+     * @return -1 if {@link #calcValidKey()} not supported
+     */
+    public default int getCodeLength() {
+        String code = calcValidKey();
+        return code == null ? -1 : code.length();
+    }
+
+    /**
+     * Write the valid key code at {@code time} into {@code output[offset, offset + getCodeLength())}
+     *
+     * @param time the timestamp in milliseconds
+     * @return the invalidation time of the written code,
+     * {@link Long#MAX_VALUE} if it is not invalidated by time,
+     * or -1 if nothing written
+     * @see #calcValidKey(long)
+     */
+    public default long renderValidKey(long time, char[] output, int offset) {
+        String code = calcValidKey(time);
+        if (code == null) return -1;
+        code.getChars(0, code.length(), output, offset);
+        long next = keyNextInvalidatedTime(time);
+        return next == -1 ? Long.MAX_VALUE : next;
+    }
+
+    /**
+     * Write the valid key code at {@code time} as ASCII into {@code output[offset, offset + getCodeLength())}
+     *
+     * @see #renderValidKey(long, char[], int)
+     */
+    public default long renderValidKey(long time, byte[] output, int offset) {
+        String code = calcValidKey(time);
+        if (code == null) return -1;
+        for (int i = 0, len = code.length(); i < len; i++) {
+            output[offset + i] = (byte) code.charAt(i);
+        }
+        long next = keyNextInvalidatedTime(time);
+        return next == -1 ? Long.MAX_VALUE : next;
+    }
+
+    /**
+     * Append the valid key code at {@code time} to {@code output}
+     *
+     * @see #renderValidKey(long, char[], int)
+     */
+    public default long renderValidKey(long time, Appendable output) throws IOException {
+        String code = calcValidKey(time);
+        if (code == null) return -1;
+        output.append(code);
+        long next = keyNextInvalidatedTime(time);
+        return next == -1 ? Long.MAX_VALUE : next;
+    }
+
     /**
      * The invalidation time of {@link #calcValidKey()}
      *
@@ -81,6 +253,16 @@ public interface IAuthorizationKey {
         return -1;
     }
 
+    /**
+     * The invalidation time of {@link #calcValidKey(long)}
+     *
+     * @param time the timestamp in milliseconds
+     * @return -1 if {@link #calcValidKey()} not supported
+     */
+    public default long keyNextInvalidatedTime(long time) {
+        return keyNextInvalidatedTime();
+    }
+
     /**
      * Get details info of this key for desktop application verbose
      */
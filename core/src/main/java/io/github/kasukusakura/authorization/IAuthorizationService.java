@@ -16,10 +16,13 @@
 
 package io.github.kasukusakura.authorization;
 
+import io.github.kasukusakura.authorization.utils.DataOutputUtil;
+
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.util.Collections;
 import java.util.Map;
@@ -31,6 +34,16 @@ import java.util.Random;
 public interface IAuthorizationService {
     public String getName();
 
+    /**
+     * The numeric id written by {@link AuthManager#serializeKey(IAuthorizationKey, DataOutput)} instead of name.
+     * Ids below 256 are reserved for built-in services.
+     *
+     * @return 0 if this service has no id, then the name is written
+     */
+    public default int getId() {
+        return 0;
+    }
+
     /**
      * Read a key from input
      *
@@ -38,6 +51,17 @@ public interface IAuthorizationService {
      */
     public IAuthorizationKey deserialize(DataInput input) throws IOException, InvalidKeyException;
 
+    /**
+     * Read a key from {@code input} in place, the position of buffer is moved after the key.
+     * <p>
+     * The default implementation reads through {@link #deserialize(DataInput)}
+     *
+     * @see IAuthorizationKey#serialize(ByteBuffer)
+     */
+    public default IAuthorizationKey deserialize(ByteBuffer input) throws IOException, InvalidKeyException {
+        return deserialize(DataOutputUtil.asDataInput(input));
+    }
+
     public IAuthorizationKey newRandomAuthorizationKey(Random random, String keyName);
 
     /**
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Rejects codes that were already accepted.
+ * <p>
+ * The ledger records the last accepted frame of every key, by {@link IAuthorizationKey#getIdentity()}
+ * so instances loaded again from the same secret share one record. A code is accepted only
+ * when its frame is newer than the recorded one. Records are immutable and replaced by
+ * compare-and-set, so verifying threads never wait for each other.
+ * <p>
+ * A record is dropped once {@link IAuthorizationKey#frameExpireTime(long)} of its frame has passed,
+ * because no code of that frame can be accepted anymore. Records do not reference the keys.
+ * Call {@link #expire(long)} from a maintenance task, or give a sweep interval to the constructor
+ * to let verifications drop a few expired records each.
+ *
+ * @see Environment#setReplayLedger(ReplayLedger)
+ */
+public class ReplayLedger {
+    private static final class Record {
+        final long frame;
+        final long expireTime;
+
+        Record(long frame, long expireTime) {
+            this.frame = frame;
+            this.expireTime = expireTime;
+        }
+    }
+
+    /**
+     * Records checked by one verification while sweeping
+     */
+    private static final int SWEEP_STEP = 64;
+
+    protected final AuthClock clock;
+    protected final long sweepIntervalMillis;
+    private final ConcurrentHashMap<Object, Record> entries;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    // Guarded by `sweeping`
+    private volatile long nextSweep;
+    private Iterator<Map.Entry<Object, Record>> sweepCursor;
+
+    /**
+     * A ledger that only drops records by {@link #expire(long)}
+     */
+    public ReplayLedger() {
+        this(AuthClock.SYSTEM, 0, 16);
+    }
+
+    /**
+     * @param sweepIntervalMillis how often verifications also sweep expired records, a few
+     *                            records per verification until the sweep is done.
+     *                            {@code <= 0} to only expire by {@link #expire(long)}
+     * @param initialCapacity     the expected number of keys
+     */
+    public ReplayLedger(AuthClock clock, long sweepIntervalMillis, int initialCapacity) {
+        this.clock = clock;
+        this.sweepIntervalMillis = sweepIntervalMillis;
+        this.entries = new ConcurrentHashMap<>(initialCapacity);
+        this.nextSweep = clock.currentTimeMillis() + sweepIntervalMillis;
+    }
+
+    /**
+     * Check {@code input} and record it as used if valid
+     *
+     * @return false if {@code input} is invalid or already used
+     */
+    public boolean checkValid(IAuthorizationKey key, CharSequence input) {
+        return checkValid(key, input, clock.currentTimeMillis());
+    }
+
+    /**
+     * Check {@code input} at {@code time} and record it as used if valid
+     *
+     * @param time the timestamp in milliseconds
+     * @return false if {@code input} is invalid or already used
+     */
+    public boolean checkValid(IAuthorizationKey key, CharSequence input, long time) {
+        long frame = key.findValidFrame(input, time);
+        if (frame < 0) return false;
+        return accept(key, frame, time);
+    }
+
+    /**
+     * Record {@code frame} matched at {@code time} as used, and sweep a few expired records if it is time to
+     *
+     * @return false if {@code frame} or a newer frame was already used
+     */
+    public boolean accept(IAuthorizationKey key, long frame, long time) {
+        boolean accepted = accept(key, frame);
+        sweepIfNeeded(time);
+        return accepted;
+    }
+
+    /**
+     * Record {@code frame} as used
+     *
+     * @return false if {@code frame} or a newer frame was already used
+     */
+    public boolean accept(IAuthorizationKey key, long frame) {
+        Object identity = key.getIdentity();
+        Record record = new Record(frame, key.frameExpireTime(frame));
+        do {
+            Record last = entries.get(identity);
+            if (last == null) {
+                if (entries.putIfAbsent(identity, record) == null) return true;
+                continue;
+            }
+            if (frame <= last.frame) return false;
+            if (entries.replace(identity, last, record)) return true;
+        } while (true);
+    }
+
+    /**
+     * Drop all records that can no longer reject any code at {@code time}
+     */
+    public void expire(long time) {
+        expire(entries.entrySet().iterator(), time, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Check at most {@code limit} records of {@code iterator}
+     *
+     * @return true if all records are checked
+     */
+    private boolean expire(Iterator<Map.Entry<Object, Record>> iterator, long time, int limit) {
+        for (int i = 0; i < limit && iterator.hasNext(); i++) {
+            Map.Entry<Object, Record> next = iterator.next();
+            Record record = next.getValue();
+            if (record.expireTime > time) continue;
+            // Not removed if a newer frame was recorded meanwhile
+            entries.remove(next.getKey(), record);
+        }
+        return !iterator.hasNext();
+    }
+
+    /**
+     * The number of keys recorded
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private void sweepIfNeeded(long time) {
+        if (sweepIntervalMillis <= 0 || time < nextSweep) return;
+        // Skipped while another verification sweeps, it continues where that one stops
+        if (!sweeping.compareAndSet(false, true)) return;
+        try {
+            if (time < nextSweep) return;
+            if (sweepCursor == null) sweepCursor = entries.entrySet().iterator();
+            if (expire(sweepCursor, time, SWEEP_STEP)) {
+                sweepCursor = null;
+                nextSweep = time + sweepIntervalMillis;
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import java.util.ServiceLoader;
 public class AuthManagerImpl extends AuthManager {
     protected final Map<String, IAuthorizationService> serviceMap = new HashMap<>();
     protected final Map<String, IAuthorizationService.URIDeserializeService> protocolServices = new HashMap<>();
+    protected final Map<Integer, IAuthorizationService> serviceIds = new HashMap<>();
     protected final Environment environment = new SimpleEnvImpl();
 
 
@@ -36,8 +37,17 @@ public class AuthManagerImpl extends AuthManager {
     }
 
     public AuthManagerImpl(boolean loadServices) {
+        this(loadServices, true);
+    }
+
+    /**
+     * @param hotp register {@link HotpAuth} with the built-in services
+     */
+    public AuthManagerImpl(boolean loadServices, boolean hotp) {
         if (loadServices) {
-            registerAuthorizationService(new OtpAuth());
+            HotpAuth hotpAuth = hotp ? new HotpAuth() : null;
+            registerAuthorizationService(new OtpAuth(hotpAuth));
+            if (hotpAuth != null) registerAuthorizationService(hotpAuth);
 
             ServiceLoader.load(IAuthorizationService.class)
                     .forEach(this::registerAuthorizationService);
@@ -59,10 +69,18 @@ public class AuthManagerImpl extends AuthManager {
         return serviceMap.get(name);
     }
 
+    @Override
+    public IAuthorizationService getAuthorizationService(int id) {
+        return serviceIds.get(id);
+    }
+
     @Override
     public boolean registerAuthorizationService(IAuthorizationService service) {
         if (serviceMap.putIfAbsent(service.getName(), service) == null) {
             service.useEnvironment(environment);
+            if (service.getId() != 0) {
+                serviceIds.putIfAbsent(service.getId(), service);
+            }
             IAuthorizationService.URIDeserializeService uriDeserializeService = service.getUriDeserializeService();
             if (uriDeserializeService != null) {
                 this.protocolServices.put(uriDeserializeService.getProtocol(), uriDeserializeService);
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import io.github.kasukusakura.authorization.AuthClock;
+import io.github.kasukusakura.authorization.BatchVerifier;
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+import io.github.kasukusakura.authorization.utils.OtpCodes;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+public class BatchVerifierImpl extends BatchVerifier {
+    /**
+     * Smallest slice of a group verified by one fork-join task
+     */
+    private static final int MIN_SLICE = 256;
+
+    protected final ForkJoinPool pool;
+    protected final int parallelThreshold;
+
+    public BatchVerifierImpl(AuthClock clock, ForkJoinPool pool, int parallelThreshold) {
+        super(clock);
+        this.pool = pool;
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Keys with same algorithm and period.
+     * {@link #algorithm} is null for keys not provided by {@link OtpAuth}
+     */
+    private static class Group {
+        String algorithm;
+        long periodMs;
+        long frame;
+        int start, count;
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Group)) return false;
+            Group group = (Group) o;
+            return periodMs == group.periodMs && Objects.equals(algorithm, group.algorithm);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(algorithm) + Long.hashCode(periodMs);
+        }
+    }
+
+    /**
+     * Destination of verification results
+     */
+    private interface Results {
+        void set(int index, boolean matched);
+    }
+
+    @Override
+    public void verify(IAuthorizationKey[] keys, CharSequence[] codes, long time, boolean[] results) {
+        if (results.length < keys.length) {
+            throw new IllegalArgumentException("codes or results is shorter than keys");
+        }
+        verify(keys, codes, time, (index, matched) -> results[index] = matched);
+    }
+
+    @Override
+    public void verify(IAuthorizationKey[] keys, CharSequence[] codes, long time, BitSet results) {
+        if (!isParallel(keys.length)) {
+            verify(keys, codes, time, results::set);
+            return;
+        }
+        // BitSet is not thread-safe, parallel tasks write their own elements of an array merged once
+        boolean[] matched = new boolean[keys.length];
+        verify(keys, codes, time, (index, match) -> matched[index] = match);
+        for (int i = 0; i < matched.length; i++) {
+            results.set(i, matched[i]);
+        }
+    }
+
+    private boolean isParallel(int size) {
+        return pool != null && size >= parallelThreshold;
+    }
+
+    private void verify(IAuthorizationKey[] keys, CharSequence[] codes, long time, Results results) {
+        int size = keys.length;
+        if (codes.length < size) {
+            throw new IllegalArgumentException("codes or results is shorter than keys");
+        }
+        if (size == 0) return;
+
+        // Group keys
+        List<Group> groups = new ArrayList<>();
+        Map<Group, Group> groupIndex = new HashMap<>();
+        Group probe = new Group();
+        Group[] keyGroups = new Group[size];
+        Group last = null;
+        for (int i = 0; i < size; i++) {
+            IAuthorizationKey key = keys[i];
+            probe.algorithm = null;
+            probe.periodMs = 0;
+            if (key instanceof OtpAuth.TotpAuthKey) {
+                OtpAuth.TotpAuthKey totp = (OtpAuth.TotpAuthKey) key;
+                probe.algorithm = totp.algorithm;
+                probe.periodMs = totp.period_ms;
+            }
+            // Keys of one batch are usually of the same kind, skip the lookup then
+            Group group = probe.equals(last) ? last : groupIndex.get(probe);
+            if (group == null) {
+                group = new Group();
+                group.algorithm = probe.algorithm;
+                group.periodMs = probe.periodMs;
+                if (group.algorithm != null) {
+                    group.frame = time / group.periodMs;
+                }
+                groups.add(group);
+                groupIndex.put(group, group);
+            }
+            group.count++;
+            keyGroups[i] = last = group;
+        }
+
+        // Bucket indexes by group
+        int[] order = new int[size];
+        int offset = 0;
+        for (Group group : groups) {
+            group.start = offset;
+            offset += group.count;
+            group.count = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            Group group = keyGroups[i];
+            order[group.start + group.count++] = i;
+        }
+
+        if (!isParallel(size)) {
+            for (Group group : groups) {
+                verify(group, order, group.start, group.start + group.count, keys, codes, time, results);
+            }
+        } else {
+            List<VerifyTask> tasks = new ArrayList<>(groups.size());
+            for (Group group : groups) {
+                tasks.add(new VerifyTask(group, order, group.start, group.start + group.count, keys, codes, time, results));
+            }
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+    }
+
+    private static void verify(
+            Group group, int[] order, int from, int to,
+            IAuthorizationKey[] keys, CharSequence[] codes, long time, Results results
+    ) {
+        if (group.algorithm == null) {
+            for (int i = from; i < to; i++) {
+                int idx = order[i];
+                results.set(idx, keys[idx].checkValid(codes[idx], time));
+            }
+            return;
+        }
+        long frame = group.frame;
+        for (int i = from; i < to; i++) {
+            int idx = order[i];
+            int code = OtpCodes.parse(codes[idx]);
+            results.set(idx, code >= 0 && ((OtpAuth.TotpAuthKey) keys[idx]).checkCode(code, frame, time));
+        }
+    }
+
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 0L;
+
+        private final Group group;
+        private final int[] order;
+        private final int from, to;
+        private final IAuthorizationKey[] keys;
+        private final CharSequence[] codes;
+        private final long time;
+        private final Results results;
+
+        VerifyTask(
+                Group group, int[] order, int from, int to,
+                IAuthorizationKey[] keys, CharSequence[] codes, long time, Results results
+        ) {
+            this.group = group;
+            this.order = order;
+            this.from = from;
+            this.to = to;
+            this.keys = keys;
+            this.codes = codes;
+            this.time = time;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= MIN_SLICE) {
+                verify(group, order, from, to, keys, codes, time, results);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(
+                    new VerifyTask(group, order, from, mid, keys, codes, time, results),
+                    new VerifyTask(group, order, mid, to, keys, codes, time, results)
+            );
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * A prepared HMAC calculator bound to one secret key.
+ * <p>
+ * Engines are created once per key and can be shared by any number of threads.
+ */
+abstract class HmacEngine {
+    /**
+     * Calculate the HMAC of the 8-byte big-endian {@code counter}
+     * and apply the dynamic truncation of RFC 4226
+     *
+     * @return a 31-bit unsigned integer
+     */
+    abstract int truncatedHash(long counter) throws GeneralSecurityException;
+
+    /**
+     * Calculate the RFC 4226 value of {@code counter}
+     *
+     * @param modulus {@code 10^digits}
+     * @return -1 if failed
+     */
+    int code(long counter, long modulus) {
+        try {
+            // Calculate the module with the maximum validation code value.
+            return (int) (truncatedHash(counter) % modulus);
+        } catch (Exception anyError) {
+            //noinspection ThrowablePrintedToSystemOut
+            System.err.println(anyError);
+            return -1;
+        }
+    }
+
+    /**
+     * @param algorithm SHA1, SHA256, SHA512
+     * @param builtin   use the pure-java engines if {@code algorithm} is supported
+     */
+    static HmacEngine newInstance(String algorithm, SecretKeySpec keySpec, boolean builtin) {
+        if (builtin) {
+            switch (algorithm) {
+                case "SHA1":
+                    return new Sha1HmacEngine(keySpec.getEncoded());
+                case "SHA256":
+                    return new Sha256HmacEngine(keySpec.getEncoded());
+                case "SHA512":
+                    return new Sha512HmacEngine(keySpec.getEncoded());
+            }
+        }
+        return new JcaHmacEngine("Hmac" + algorithm, keySpec);
+    }
+
+    static int dynamicTruncation(byte[] hash, int length) {
+        int offset = hash[length - 1] & 0xF;
+
+        int truncatedHash = 0;
+        for (int i = 0; i < 4; ++i) {
+            truncatedHash <<= 8;
+
+            // Java bytes are signed, but we need an unsigned integer:
+            // cleaning off all but the LSB.
+            truncatedHash |= (hash[offset + i] & 0xFF);
+        }
+
+        // Clean bits higher than the 32nd (inclusive)
+        return truncatedHash & 0x7FFFFFFF;
+    }
+
+    /**
+     * Load a zero-padded 64-byte key block as big-endian words and xor with {@code pad}
+     */
+    static void padKey(byte[] key, int[] w, int pad) {
+        for (int i = 0; i < 16; i++) {
+            int v = 0;
+            for (int j = 0; j < 4; j++) {
+                int idx = i * 4 + j;
+                v = (v << 8) | (idx < key.length ? key[idx] & 0xFF : 0);
+            }
+            w[i] = v ^ pad;
+        }
+    }
+
+    /**
+     * Read 4 bytes starting at byte {@code index} of the big-endian words {@code words[offset...]}
+     */
+    static int readInt(int[] words, int offset, int index) {
+        int v = 0;
+        for (int i = index; i < index + 4; i++) {
+            v = (v << 8) | ((words[offset + (i >>> 2)] >>> (24 - ((i & 3) << 3))) & 0xFF);
+        }
+        return v;
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+import io.github.kasukusakura.authorization.IAuthorizationService;
+import io.github.kasukusakura.authorization.KeyRule;
+import io.github.kasukusakura.authorization.utils.*;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/*
+ * https://datatracker.ietf.org/doc/html/rfc4226
+ */
+public class HotpAuth extends AuthorizationServiceBase implements IAuthorizationService {
+    /**
+     * Environment key of the {@link HotpCounterStore} file.
+     * Counters are only kept in memory (and in serialized keys) if absent
+     */
+    public static final String ENV_COUNTER_STORE = "hotp.counter-store";
+    /**
+     * Environment key of the maximum counters searched by {@link HotpAuthKey#resync(CharSequence, CharSequence)}
+     */
+    public static final String ENV_RESYNC_WINDOW = "hotp.resync-window";
+
+    private static final AtomicLongFieldUpdater<HotpAuthKey> COUNTER = AtomicLongFieldUpdater.newUpdater(
+            HotpAuthKey.class, "counter"
+    );
+
+    private static final SecureRandom ID_RANDOM = new SecureRandom();
+
+    private HotpCounterStore counterStore;
+    private boolean counterStoreResolved;
+
+    public class HotpAuthKey implements IAuthorizationKey {
+        String keyName;
+        byte[] src;
+        String algorithm; // SHA1, SHA256, SHA512
+        String issuer;
+        int digits = 6;
+        volatile long counter;
+        int lookAhead = 10;
+        long id;
+
+        transient HmacEngine hmac;
+        transient long digits_0;
+        transient HotpCounterStore store;
+        transient int slot;
+
+        void initialize() {
+            if (algorithm == null) {
+                algorithm = "SHA1";
+            }
+            algorithm = algorithm.toUpperCase(Locale.ROOT);
+            SecretKeySpec keySpec = new SecretKeySpec(src, "Hmac" + algorithm);
+            hmac = HmacEngine.newInstance(algorithm, keySpec, useBuiltinHmac());
+            if (keyName == null || keyName.isEmpty()) {
+                keyName = "RandomKey " + UUID.randomUUID();
+            }
+            digits_0 = (long) Math.pow(10, digits);
+            if (issuer != null && issuer.isEmpty()) {
+                issuer = null;
+            }
+            if (id == 0) {
+                // Keys with the same id share one counter, so it must not collide
+                id = ID_RANDOM.nextLong() | 1;
+            }
+            store = counterStore();
+            if (store != null) {
+                try {
+                    slot = store.slot(id, counter);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * The counter of the next accepted code
+         */
+        public long counter() {
+            if (store != null) return store.get(slot);
+            return counter;
+        }
+
+        /**
+         * Free the counter slot of this key in the {@link HotpCounterStore}
+         */
+        @Override
+        public void release() {
+            HotpCounterStore store = this.store;
+            if (store == null) return;
+            this.counter = store.get(slot);
+            this.store = null;
+            store.release(id);
+        }
+
+        boolean advance(long expect, long update) {
+            if (store != null) return store.compareAndSet(slot, expect, update);
+            return COUNTER.compareAndSet(this, expect, update);
+        }
+
+        public int code(long counter) {
+            return hmac.code(counter, digits_0);
+        }
+
+        /**
+         * Writes format v2: {@code [0xF2][name][algorithm id][secret][issuer][digits][counter][look-ahead][id]}
+         * with varint lengths and numbers, except the random id
+         */
+        @Override
+        public void serialize(DataOutput output) throws IOException {
+            output.writeByte(OtpKeyFormat.V2);
+            DataOutputUtil.writeVarString(output, keyName);
+            OtpKeyFormat.writeAlgorithm(output, algorithm);
+            DataOutputUtil.writeVarByteArray(output, src);
+            DataOutputUtil.writeVarString(output, issuer);
+            DataOutputUtil.writeVarInt(output, digits);
+            DataOutputUtil.writeVarLong(output, counter());
+            DataOutputUtil.writeVarInt(output, lookAhead);
+            output.writeLong(id);
+        }
+
+        @Override
+        public void serialize(ByteBuffer output) {
+            int start = output.position();
+            try {
+                output.put((byte) OtpKeyFormat.V2);
+                DataOutputUtil.writeVarString(output, keyName);
+                OtpKeyFormat.writeAlgorithm(output, algorithm);
+                DataOutputUtil.writeVarByteArray(output, src);
+                DataOutputUtil.writeVarString(output, issuer);
+                DataOutputUtil.writeVarInt(output, digits);
+                DataOutputUtil.writeVarLong(output, counter());
+                DataOutputUtil.writeVarInt(output, lookAhead);
+                output.putLong(id);
+            } catch (BufferOverflowException e) {
+                output.position(start);
+                throw e;
+            }
+        }
+
+        @Override
+        public boolean checkValid(String input) {
+            return checkValid(OtpCodes.parse(input));
+        }
+
+        @Override
+        public boolean checkValid(CharSequence input) {
+            return checkValid(OtpCodes.parse(input));
+        }
+
+        @Override
+        public boolean checkValid(char[] input, int offset, int length) {
+            return checkValid(OtpCodes.parse(input, offset, length));
+        }
+
+        @Override
+        public boolean checkValid(ByteBuffer input) {
+            return checkValid(OtpCodes.parse(input));
+        }
+
+        /**
+         * Search the look-ahead window, {@code lookAhead} counters starting at the current one, for {@code code}.
+         * The counter moves past the matched one, so every code is accepted only once.
+         */
+        public boolean checkValid(int code) {
+            if (code < 0) return false;
+            do {
+                long current = counter();
+                long matched = -1;
+                for (long c = current, end = current + Math.max(lookAhead, 1); c < end; c++) {
+                    if (OtpCodes.isEqual(code(c), code)) {
+                        matched = c;
+                        break;
+                    }
+                }
+                if (matched == -1) return false;
+                if (advance(current, matched + 1)) return true;
+                // Counter moved by another thread, search again
+            } while (true);
+        }
+
+        /**
+         * Resynchronize the counter with two consecutive codes from the token
+         *
+         * @return false if the codes cannot be found in the resync window
+         */
+        public boolean resync(CharSequence first, CharSequence second) {
+            int code1 = OtpCodes.parse(first), code2 = OtpCodes.parse(second);
+            if (code1 < 0 || code2 < 0) return false;
+            int window = resyncWindow();
+            do {
+                long current = counter();
+                long matched = -1;
+                int next = code(current);
+                for (long c = current, end = current + window; c < end; c++) {
+                    int crt = next;
+                    next = code(c + 1);
+                    if (OtpCodes.isEqual(crt, code1) & OtpCodes.isEqual(next, code2)) {
+                        matched = c;
+                        break;
+                    }
+                }
+                if (matched == -1) return false;
+                if (advance(current, matched + 2)) return true;
+            } while (true);
+        }
+
+        @Override
+        public String getKeyName() {
+            return keyName;
+        }
+
+        @Override
+        public IAuthorizationService getService() {
+            return HotpAuth.this;
+        }
+
+        @Override
+        public String calcValidKey() {
+            char[] rsp = new char[digits];
+            if (renderValidKey(0, rsp, 0) == -1) return null;
+            return new String(rsp);
+        }
+
+        @Override
+        public int getCodeLength() {
+            return digits;
+        }
+
+        @Override
+        public long renderValidKey(long time, char[] output, int offset) {
+            int code = code(counter());
+            if (code < 0) return -1;
+            OtpCodes.render(code, digits, output, offset);
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public long renderValidKey(long time, byte[] output, int offset) {
+            int code = code(counter());
+            if (code < 0) return -1;
+            OtpCodes.render(code, digits, output, offset);
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public long renderValidKey(long time, Appendable output) throws IOException {
+            int code = code(counter());
+            if (code < 0) return -1;
+            OtpCodes.render(code, digits, output);
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String serializeToUri() {
+            StringBuilder sb = new StringBuilder("otpauth://hotp/");
+            URLEncoder.encode(keyName, StandardCharsets.UTF_8, sb);
+            sb.append("?secret=");
+            Base32.encode(src, sb);
+            sb.append("&algorithm=").append(algorithm);
+            sb.append("&digits=").append(digits);
+            sb.append("&counter=").append(counter());
+            if (issuer != null) {
+                sb.append("&issuer=");
+                URLEncoder.encode(issuer, StandardCharsets.UTF_8, sb);
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public Map<String, String> getDetailsInfo() {
+            HashMap<String, String> details = new HashMap<>();
+            details.put("name", keyName);
+            details.put("secret", Base32.encode(src));
+            details.put("algorithm", algorithm);
+            if (issuer != null) details.put("issuer", issuer);
+            details.put("digits", String.valueOf(digits));
+            details.put("counter", String.valueOf(counter()));
+            return details;
+        }
+
+        @Override
+        public boolean rename(String name) {
+            if (name == null || name.isEmpty()) return false;
+            this.keyName = name;
+            return true;
+        }
+    }
+
+    /**
+     * Use {@code store} for keys initialized after this call
+     */
+    public synchronized void setCounterStore(HotpCounterStore store) {
+        this.counterStore = store;
+        this.counterStoreResolved = true;
+    }
+
+    synchronized HotpCounterStore counterStore() {
+        if (!counterStoreResolved) {
+            counterStoreResolved = true;
+            String path = environment == null ? null : environment.get(ENV_COUNTER_STORE);
+            if (path != null && !path.isEmpty()) {
+                try {
+                    counterStore = new HotpCounterStore(new File(path), 1024);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        return counterStore;
+    }
+
+    boolean useBuiltinHmac() {
+        if (environment == null) return false;
+        return "builtin".equals(environment.get(OtpAuth.ENV_HMAC_ENGINE));
+    }
+
+    int resyncWindow() {
+        if (environment == null) return 100;
+        return Integer.parseInt(environment.get(ENV_RESYNC_WINDOW, "100"));
+    }
+
+    @Override
+    public String getName() {
+        return "hotp";
+    }
+
+    @Override
+    public int getId() {
+        return 2;
+    }
+
+    @Override
+    public IAuthorizationKey deserialize(DataInput input) throws IOException, InvalidKeyException {
+        HotpAuthKey key = new HotpAuthKey();
+        int head = input.readUnsignedByte();
+        if (head != OtpKeyFormat.V2) throw new IOException("Unsupported hotp key format: " + head);
+        key.keyName = DataOutputUtil.readVarString(input);
+        key.algorithm = OtpKeyFormat.readAlgorithm(input);
+        key.src = DataOutputUtil.readVarByteArray(input);
+        key.issuer = DataOutputUtil.readVarString(input);
+        key.digits = DataOutputUtil.readVarInt(input);
+        key.counter = DataOutputUtil.readVarLong(input);
+        key.lookAhead = DataOutputUtil.readVarInt(input);
+        key.id = input.readLong();
+        key.initialize();
+        return key;
+    }
+
+    @Override
+    public IAuthorizationKey deserialize(ByteBuffer input) throws IOException, InvalidKeyException {
+        HotpAuthKey key = new HotpAuthKey();
+        try {
+            int head = input.get() & 0xFF;
+            if (head != OtpKeyFormat.V2) throw new IOException("Unsupported hotp key format: " + head);
+            key.keyName = DataOutputUtil.readVarString(input);
+            key.algorithm = OtpKeyFormat.readAlgorithm(input);
+            key.src = DataOutputUtil.readVarByteArray(input);
+            key.issuer = DataOutputUtil.readVarString(input);
+            key.digits = DataOutputUtil.readVarInt(input);
+            key.counter = DataOutputUtil.readVarLong(input);
+            key.lookAhead = DataOutputUtil.readVarInt(input);
+            key.id = input.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+        key.initialize();
+        return key;
+    }
+
+    @Override
+    public IAuthorizationKey newRandomAuthorizationKey(Random random, String keyName) {
+        byte[] src = new byte[20];
+        random.nextBytes(src);
+        HotpAuthKey key = new HotpAuthKey();
+        key.keyName = keyName;
+        key.src = src;
+        key.initialize();
+        return key;
+    }
+
+    @Override
+    public IAuthorizationKey generateNewKey(Random random, Map<String, String> values) {
+        HotpAuthKey key = new HotpAuthKey();
+        key.keyName = values.get("name");
+        key.issuer = values.get("issuer");
+        key.algorithm = values.get("algorithm");
+        key.digits = Integer.parseInt(values.getOrDefault("digits", "6"));
+        key.counter = Long.parseLong(values.getOrDefault("counter", "0"));
+        key.lookAhead = Integer.parseInt(values.getOrDefault("look-ahead", "10"));
+
+        String secret = values.get("secret");
+        if (secret != null && !secret.isEmpty()) {
+            key.src = Base32.decode(secret);
+        } else {
+            int len = Integer.parseInt(values.getOrDefault("secret-len", "20"));
+            byte[] src = new byte[len];
+            random.nextBytes(src);
+            key.src = src;
+        }
+        key.initialize();
+        return key;
+    }
+
+    @Override
+    public Map<String, KeyRule> getKeyRules() {
+        KeyRule.KeyDetailsGenerator generator = KeyRule.generator();
+        generator.rule("name")
+                .description("The name of key")
+        ;
+        generator.rule("issuer")
+                .description("The issuer of this key")
+        ;
+        generator.rule("algorithm").type(KeyRule.Type.COMBO_LIST)
+                .description("The algorithm")
+                .options("SHA1", "SHA256", "SHA512")
+                .value("SHA1")
+        ;
+        generator.rule("digits")
+                .description("The digits")
+                .value(6)
+        ;
+        generator.rule("counter")
+                .description("The initial counter")
+                .value(0)
+        ;
+        generator.rule("look-ahead")
+                .description("Counters accepted, starting at the current one")
+                .value(10)
+        ;
+        generator.rule("secret")
+                .description("The secret of this key");
+        generator.rule("secret-len")
+                .description("Key length")
+                .value(20);
+        return generator.rules;
+    }
+
+    /**
+     * Parse {@code otpauth://hotp/...}
+     *
+     * @see OtpAuth#deserialize(URI)
+     */
+    public IAuthorizationKey deserialize(URI uri) throws IOException, InvalidKeyException {
+        String name = uri.getPath().substring(1);
+        if (name.isEmpty()) throw new InvalidKeyException("Empty key name");
+        if (uri.getRawQuery() == null) throw new InvalidKeyException("No parameters");
+        Map<String, String> args = XFormParser.parse(uri.getRawQuery());
+        String secret = args.get("secret");
+        if (secret == null) {
+            throw new InvalidKeyException("No secrets found in " + uri);
+        }
+        HotpAuthKey authKey = new HotpAuthKey();
+        authKey.keyName = URLDecoder.decode(name, StandardCharsets.UTF_8);
+        authKey.src = Base32.decode(secret);
+        authKey.algorithm = args.get("algorithm");
+        authKey.digits = Integer.parseInt(args.getOrDefault("digits", "6"));
+        authKey.counter = Long.parseLong(args.getOrDefault("counter", "0"));
+        authKey.issuer = args.get("issuer");
+        authKey.initialize();
+        return authKey;
+    }
+}
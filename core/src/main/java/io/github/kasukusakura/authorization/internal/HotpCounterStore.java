@@ -0,0 +1,190 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent HOTP counters backed by a memory-mapped file.
+ * <p>
+ * Every key owns one slot addressed by its id. Advancing a counter is a single
+ * write into the mapping, so counters survive restarts without rewriting any file.
+ * <p>
+ * File layout: {@code [magic int][version int][used int][reserved int]}
+ * followed by slots of {@code [id long][counter long]}. Id {@code 0} marks a released slot.
+ */
+public class HotpCounterStore implements Closeable {
+    private static final int MAGIC = 0x4B53_4843; // KSHC
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int SLOT_SIZE = 16;
+    private static final int STRIPES = 64;
+    private static final int MIN_CAPACITY = 16;
+    private static final long FREE = 0;
+
+    private final FileChannel channel;
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<>();
+    private final Object[] locks = new Object[STRIPES];
+    private volatile MappedByteBuffer buffer;
+    private int capacity;
+    private int used;
+
+    public HotpCounterStore(File file, int initialCapacity) throws IOException {
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE
+        );
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                remap(Math.max(initialCapacity, MIN_CAPACITY));
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, 0);
+            } else {
+                if (size < HEADER_SIZE || (size - HEADER_SIZE) % SLOT_SIZE != 0
+                        || (size - HEADER_SIZE) / SLOT_SIZE > Integer.MAX_VALUE / SLOT_SIZE) {
+                    throw new IOException("Broken counter store, size " + size + ": " + file);
+                }
+                remap((int) ((size - HEADER_SIZE) / SLOT_SIZE));
+                if (buffer.getInt(0) != MAGIC) {
+                    throw new IOException("Not a hotp counter store: " + file);
+                }
+                if (buffer.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported counter store version " + buffer.getInt(4) + ": " + file);
+                }
+                used = buffer.getInt(8);
+                if (used < 0 || used > capacity) {
+                    throw new IOException("Broken counter store: " + file);
+                }
+                for (int i = 0; i < used; i++) {
+                    long id = buffer.getLong(HEADER_SIZE + i * SLOT_SIZE);
+                    if (id == FREE) {
+                        freeSlots.add(i);
+                    } else {
+                        slots.put(id, i);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void remap(int newCapacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE + 8;
+    }
+
+    /**
+     * Find the slot of {@code id}, or allocate one starting at {@code counter}.
+     * The stored counter is never moved backwards.
+     *
+     * @param id any value but {@code 0}
+     */
+    public synchronized int slot(long id, long counter) throws IOException {
+        if (id == FREE) throw new IllegalArgumentException("id == 0");
+        Integer slot = slots.get(id);
+        if (slot == null) {
+            slot = freeSlots.poll();
+            if (slot == null) {
+                if (used == capacity) {
+                    remap(Math.max(capacity * 2, MIN_CAPACITY));
+                }
+                slot = used++;
+                buffer.putInt(8, used);
+            }
+            MappedByteBuffer buffer = this.buffer;
+            set(slot, counter);
+            buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, id);
+            slots.put(id, slot);
+            return slot;
+        }
+        if (get(slot) < counter) {
+            set(slot, counter);
+        }
+        return slot;
+    }
+
+    /**
+     * Release the slot of {@code id} for reuse by other keys.
+     * The slot must not be accessed afterwards.
+     */
+    public synchronized void release(long id) {
+        Integer slot = slots.remove(id);
+        if (slot == null) return;
+        buffer.putLong(HEADER_SIZE + slot * SLOT_SIZE, FREE);
+        freeSlots.add(slot);
+    }
+
+    public long get(int slot) {
+        synchronized (locks[slot % STRIPES]) {
+            return buffer.getLong(offset(slot));
+        }
+    }
+
+    /**
+     * Move the counter of {@code slot} to {@code update} if it is still {@code expect}
+     */
+    public boolean compareAndSet(int slot, long expect, long update) {
+        synchronized (locks[slot % STRIPES]) {
+            MappedByteBuffer buffer = this.buffer;
+            int offset = offset(slot);
+            if (buffer.getLong(offset) != expect) return false;
+            buffer.putLong(offset, update);
+            return true;
+        }
+    }
+
+    private void set(int slot, long value) {
+        synchronized (locks[slot % STRIPES]) {
+            buffer.putLong(offset(slot), value);
+        }
+    }
+
+    /**
+     * Write all counters to the storage device
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
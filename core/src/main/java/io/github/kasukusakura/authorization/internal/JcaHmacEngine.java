@@ -0,0 +1,74 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+
+/**
+ * HMAC engine backed by JCA {@link Mac}.
+ * <p>
+ * Every thread keeps its own initialized {@link Mac}, so the provider lookup
+ * and the key schedule only run once per thread instead of once per code.
+ * {@link Mac#doFinal(byte[], int)} resets the instance for the next frame.
+ */
+class JcaHmacEngine extends HmacEngine {
+    private static final ThreadLocal<byte[]> TMD8 = ThreadLocal.withInitial(
+            () -> new byte[8]
+    );
+    private static final ThreadLocal<byte[]> HASH_BUFFER = ThreadLocal.withInitial(
+            () -> new byte[64] // Enough for SHA512
+    );
+
+    private final String algorithm;
+    private final SecretKeySpec keySpec;
+    private final ThreadLocal<Mac> prepared = new ThreadLocal<>();
+
+    JcaHmacEngine(String algorithm, SecretKeySpec keySpec) {
+        this.algorithm = algorithm;
+        this.keySpec = keySpec;
+    }
+
+    private Mac mac() throws GeneralSecurityException {
+        Mac mac = prepared.get();
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm);
+            mac.init(keySpec);
+            prepared.set(mac);
+        }
+        return mac;
+    }
+
+    @Override
+    int truncatedHash(long counter) throws GeneralSecurityException {
+        Mac mac = mac();
+        byte[] data = TMD8.get();
+        for (int i = 8; i-- > 0; counter >>>= 8) {
+            data[i] = (byte) counter;
+        }
+        byte[] hash = HASH_BUFFER.get();
+        int length = mac.getMacLength();
+        if (length > hash.length) {
+            hash = new byte[length];
+            HASH_BUFFER.set(hash);
+        }
+        mac.update(data);
+        mac.doFinal(hash, 0);
+        return dynamicTruncation(hash, length);
+    }
+}
@@ -16,19 +16,27 @@
 
 package io.github.kasukusakura.authorization.internal;
 
+import io.github.kasukusakura.authorization.AuthClock;
+import io.github.kasukusakura.authorization.Environment;
 import io.github.kasukusakura.authorization.IAuthorizationKey;
 import io.github.kasukusakura.authorization.IAuthorizationService;
 import io.github.kasukusakura.authorization.KeyRule;
+import io.github.kasukusakura.authorization.ReplayLedger;
 import io.github.kasukusakura.authorization.utils.*;
 
-import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 
@@ -41,9 +49,34 @@ public class OtpAuth
         IAuthorizationService,
         IAuthorizationService.URIDeserializeService {
 
-    private static final ThreadLocal<byte[]> TMD8 = ThreadLocal.withInitial(
-            () -> new byte[8]
-    );
+    /**
+     * Environment key to select the HMAC engine of new keys.
+     * <p>
+     * {@code jca} (default): {@link javax.crypto.Mac};
+     * {@code builtin}: pure-java HMAC with precomputed ipad/opad state
+     */
+    public static final String ENV_HMAC_ENGINE = "otpauth.hmac.engine";
+    /**
+     * Environment key to cache the codes of the active window per key.
+     * <p>
+     * {@code true}: codes are calculated once per frame and shared by all threads
+     */
+    public static final String ENV_FRAME_CACHE = "otpauth.frame-cache";
+
+    /**
+     * The codes of frame {@code frame - 1}, {@code frame} and {@code frame + 1}
+     */
+    static final class FrameCodes {
+        final long frame;
+        final int previous, current, next;
+
+        FrameCodes(long frame, int previous, int current, int next) {
+            this.frame = frame;
+            this.previous = previous;
+            this.current = current;
+            this.next = next;
+        }
+    }
 
     public class TotpAuthKey implements IAuthorizationKey {
         String keyName;
@@ -54,8 +87,12 @@ public class OtpAuth
         long period = 30; // s
 
         transient SecretKeySpec keySpec;
+        transient HmacEngine hmac;
+        transient boolean frameCache;
+        transient volatile FrameCodes frameCodes;
         transient long digits_0;
         transient long period_ms;
+        transient volatile Object identity;
 
         void initialize() {
             if (algorithm == null) {
@@ -63,6 +100,10 @@ public class OtpAuth
             }
             algorithm = algorithm.toUpperCase(Locale.ROOT);
             keySpec = new SecretKeySpec(src, "Hmac" + algorithm);
+            hmac = HmacEngine.newInstance(algorithm, keySpec, useBuiltinHmac());
+            frameCache = useFrameCache();
+            frameCodes = null;
+            identity = null;
             if (keyName == null || keyName.isEmpty()) {
                 keyName = "RandomKey " + UUID.randomUUID();
             }
@@ -73,8 +114,27 @@ public class OtpAuth
             }
         }
 
+        /**
+         * Writes format v2: {@code [0xF2][name][algorithm id][secret][issuer][digits][period]}
+         * with varint lengths and numbers
+         */
         @Override
         public void serialize(DataOutput output) throws IOException {
+            output.writeByte(OtpKeyFormat.V2);
+            DataOutputUtil.writeVarString(output, keyName);
+            OtpKeyFormat.writeAlgorithm(output, algorithm);
+            DataOutputUtil.writeVarByteArray(output, src);
+            DataOutputUtil.writeVarString(output, issuer);
+            DataOutputUtil.writeVarInt(output, digits);
+            DataOutputUtil.writeVarLong(output, period);
+        }
+
+        /**
+         * Writes format v1: {@code [name][algorithm][secret][issuer][digits][period]}
+         * with {@link DataOutput#writeUTF(String)} strings and fixed size numbers
+         */
+        @Override
+        public void serializeV1(DataOutput output) throws IOException {
             output.writeUTF(keyName);
             output.writeUTF(algorithm);
             DataOutputUtil.writeByteArray(output, src);
@@ -83,67 +143,179 @@ public class OtpAuth
             output.writeLong(period);
         }
 
+        @Override
+        public void serialize(ByteBuffer output) {
+            int start = output.position();
+            try {
+                output.put((byte) OtpKeyFormat.V2);
+                DataOutputUtil.writeVarString(output, keyName);
+                OtpKeyFormat.writeAlgorithm(output, algorithm);
+                DataOutputUtil.writeVarByteArray(output, src);
+                DataOutputUtil.writeVarString(output, issuer);
+                DataOutputUtil.writeVarInt(output, digits);
+                DataOutputUtil.writeVarLong(output, period);
+            } catch (BufferOverflowException e) {
+                output.position(start);
+                throw e;
+            }
+        }
+
         public long currentFrame() {
-            return System.currentTimeMillis() / period_ms;
+            return clock().currentTimeMillis() / period_ms;
         }
 
         public int code(long frame) {
-            byte[] data = TMD8.get();
-            for (int i = 8; i-- > 0; frame >>>= 8) {
-                data[i] = (byte) frame;
-            }
-            try {
-                Mac mac = Mac.getInstance("Hmac" + algorithm);
-                mac.init(keySpec);
-                byte[] hash = mac.doFinal(data);
-                int offset = hash[hash.length - 1] & 0xF;
-
-                int truncatedHash = 0;
-                for (int i = 0; i < 4; ++i) {
-                    truncatedHash <<= 8;
-
-                    // Java bytes are signed, but we need an unsigned integer:
-                    // cleaning off all but the LSB.
-                    truncatedHash |= (hash[offset + i] & 0xFF);
-                }
-
-                // Clean bits higher than the 32nd (inclusive) and calculate the
-                // module with the maximum validation code value.
-                truncatedHash &= 0x7FFFFFFF;
-                truncatedHash %= digits_0;
-
-                // Returning the validation code to the caller.
-                return truncatedHash;
-            } catch (Exception anyError) {
-                //noinspection ThrowablePrintedToSystemOut
-                System.err.println(anyError);
-                return -1;
-            }
+            return hmac.code(frame, digits_0);
         }
 
         @Override
         public long keyNextInvalidatedTime() {
-            return (currentFrame() + 1) * period_ms;
+            return keyNextInvalidatedTime(clock().currentTimeMillis());
+        }
+
+        @Override
+        public long keyNextInvalidatedTime(long time) {
+            return (time / period_ms + 1) * period_ms;
         }
 
-        @SuppressWarnings("RedundantIfStatement")
         @Override
         public boolean checkValid(String input) {
-            long v;
-            try {
-                v = Long.parseLong(input);
-                if (v < 0) return false;
-            } catch (NumberFormatException ignored) {
-                return false;
+            return checkValid(OtpCodes.parse(input));
+        }
+
+        @Override
+        public boolean checkValid(CharSequence input) {
+            return checkValid(OtpCodes.parse(input));
+        }
+
+        @Override
+        public boolean checkValid(CharSequence input, long time) {
+            int code = OtpCodes.parse(input);
+            if (code < 0) return false;
+            return checkCode(code, time / period_ms, time);
+        }
+
+        @Override
+        public long findValidFrame(CharSequence input, long time) {
+            int code = OtpCodes.parse(input);
+            if (code < 0) return -1;
+            return findFrame(code, time / period_ms);
+        }
+
+        long findFrame(int code, long now) {
+            int c0, c1, c2;
+            if (frameCache) {
+                FrameCodes codes = frameCodes(now);
+                c0 = codes.previous;
+                c1 = codes.current;
+                c2 = codes.next;
+            } else {
+                c0 = code(now - 1);
+                c1 = code(now);
+                c2 = code(now + 1);
             }
+            boolean m0 = OtpCodes.isEqual(c0, code);
+            boolean m1 = OtpCodes.isEqual(c1, code);
+            boolean m2 = OtpCodes.isEqual(c2, code);
+            // Prefer the oldest frame if codes collide
+            if (m0) return now - 1;
+            if (m1) return now;
+            if (m2) return now + 1;
+            return -1;
+        }
 
-            long now = currentFrame();
+        @Override
+        public long frameExpireTime(long frame) {
+            return (frame + 2) * period_ms;
+        }
+
+        /**
+         * SHA-256 of the parameters deciding the codes
+         */
+        @Override
+        public Object getIdentity() {
+            Object id = identity;
+            if (id != null) return id;
+            id = ByteBuffer.wrap(identityDigest(algorithm, digits, period, src)).asReadOnlyBuffer();
+            return identity = id;
+        }
+
+        @Override
+        public boolean checkValid(char[] input, int offset, int length) {
+            return checkValid(OtpCodes.parse(input, offset, length));
+        }
+
+        @Override
+        public boolean checkValid(ByteBuffer input) {
+            return checkValid(OtpCodes.parse(input));
+        }
+
+        public boolean checkValid(int code) {
+            if (code < 0) return false;
+            long time = clock().currentTimeMillis();
+            return checkCode(code, time / period_ms, time);
+        }
+
+        /**
+         * Check {@code code} around {@code frame}, and record it in the
+         * {@link Environment#getReplayLedger() replay ledger} if there is one
+         *
+         * @param time the timestamp {@code frame} was taken from
+         */
+        boolean checkCode(int code, long frame, long time) {
+            ReplayLedger ledger = replayLedger();
+            if (ledger == null) return checkFrame(code, frame);
+            long matched = findFrame(code, frame);
+            return matched >= 0 && ledger.accept(this, matched, time);
+        }
+
+        /**
+         * Get the codes of the window around {@code frame}.
+         * <p>
+         * The latest window is published without lock. Racing threads may calculate
+         * the same window twice, but all of them observe a complete {@link FrameCodes}.
+         */
+        FrameCodes frameCodes(long frame) {
+            FrameCodes cached = frameCodes;
+            if (cached != null) {
+                if (cached.frame == frame) return cached;
+                if (cached.frame > frame) { // Old frame, don't override the newer one
+                    return new FrameCodes(frame, code(frame - 1), code(frame), code(frame + 1));
+                }
+            }
+            FrameCodes codes;
+            if (cached != null && cached.frame == frame - 1) {
+                codes = new FrameCodes(frame, cached.current, cached.next, code(frame + 1));
+            } else {
+                codes = new FrameCodes(frame, code(frame - 1), code(frame), code(frame + 1));
+            }
+            if (codes.previous != -1 && codes.current != -1 && codes.next != -1) {
+                frameCodes = codes;
+            }
+            return codes;
+        }
 
-            if (code(now) == v) return true;
-            if (code(now + 1) == v) return true;
-            if (code(now - 1) == v) return true;
+        int currentCode(long frame) {
+            if (frameCache) return frameCodes(frame).current;
+            return code(frame);
+        }
 
-            return false;
+        boolean checkFrame(int code, long now) {
+            int c0, c1, c2;
+            if (frameCache) {
+                FrameCodes codes = frameCodes(now);
+                c0 = codes.current;
+                c1 = codes.next;
+                c2 = codes.previous;
+            } else {
+                c0 = code(now);
+                c1 = code(now + 1);
+                c2 = code(now - 1);
+            }
+            // Always compare all codes without short-circuit
+            return OtpCodes.isEqual(c0, code)
+                    | OtpCodes.isEqual(c1, code)
+                    | OtpCodes.isEqual(c2, code);
         }
 
         @Override
@@ -158,17 +330,46 @@ public class OtpAuth
 
         @Override
         public String calcValidKey() {
-            String rsp = String.valueOf(code(currentFrame()));
-            if (rsp.length() < digits) {
-                int c = digits - rsp.length();
-                StringBuilder sb = new StringBuilder(digits);
+            return calcValidKey(clock().currentTimeMillis());
+        }
 
-                while (c-- > 0) sb.append('0');
-                sb.append(rsp);
+        @Override
+        public String calcValidKey(long time) {
+            char[] rsp = new char[digits];
+            if (renderValidKey(time, rsp, 0) == -1) return null;
+            return new String(rsp);
+        }
 
-                return sb.toString();
-            }
-            return rsp;
+        @Override
+        public int getCodeLength() {
+            return digits;
+        }
+
+        @Override
+        public long renderValidKey(long time, char[] output, int offset) {
+            long frame = time / period_ms;
+            int code = currentCode(frame);
+            if (code < 0) return -1;
+            OtpCodes.render(code, digits, output, offset);
+            return (frame + 1) * period_ms;
+        }
+
+        @Override
+        public long renderValidKey(long time, byte[] output, int offset) {
+            long frame = time / period_ms;
+            int code = currentCode(frame);
+            if (code < 0) return -1;
+            OtpCodes.render(code, digits, output, offset);
+            return (frame + 1) * period_ms;
+        }
+
+        @Override
+        public long renderValidKey(long time, Appendable output) throws IOException {
+            long frame = time / period_ms;
+            int code = currentCode(frame);
+            if (code < 0) return -1;
+            OtpCodes.render(code, digits, output);
+            return (frame + 1) * period_ms;
         }
 
         @Override
@@ -193,6 +394,7 @@ public class OtpAuth
             details.put("name", keyName);
             details.put("secret", Base32.encode(src));
             details.put("algorithm", algorithm);
+            if (issuer != null) details.put("issuer", issuer);
             details.put("digits", String.valueOf(digits));
             details.put("period (s)", String.valueOf(period));
             return details;
@@ -206,20 +408,119 @@ public class OtpAuth
         }
     }
 
+    protected final HotpAuth hotp;
+
+    public OtpAuth() {
+        this(null);
+    }
+
+    /**
+     * @param hotp the service parsing {@code otpauth://hotp} uris. {@code null} to reject them
+     */
+    public OtpAuth(HotpAuth hotp) {
+        this.hotp = hotp;
+    }
+
+    AuthClock clock() {
+        if (environment == null) return AuthClock.SYSTEM;
+        return environment.getClock();
+    }
+
+    ReplayLedger replayLedger() {
+        if (environment == null) return null;
+        return environment.getReplayLedger();
+    }
+
+    /**
+     * SHA-256 of the parameters deciding the codes of a TOTP key
+     *
+     * @see TotpAuthKey#getIdentity()
+     */
+    static byte[] identityDigest(String algorithm, int digits, long period, byte[] secret) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(algorithm.getBytes(StandardCharsets.UTF_8));
+            digest.update(ByteBuffer.allocate(12).putInt(digits).putLong(period).array());
+            digest.update(secret);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create an empty {@link TotpKeyTable} owned by this service
+     *
+     * @param direct store secrets in a direct buffer
+     */
+    public TotpKeyTable newKeyTable(int initialCapacity, boolean direct) {
+        return new TotpKeyTable(this, initialCapacity, direct);
+    }
+
+    boolean useBuiltinHmac() {
+        if (environment == null) return false;
+        return "builtin".equals(environment.get(ENV_HMAC_ENGINE));
+    }
+
+    boolean useFrameCache() {
+        if (environment == null) return false;
+        return Boolean.parseBoolean(environment.get(ENV_FRAME_CACHE));
+    }
+
     @Override
     public String getName() {
         return "otpauth";
     }
 
+    @Override
+    public int getId() {
+        return 1;
+    }
+
     @Override
     public IAuthorizationKey deserialize(DataInput input) throws IOException, InvalidKeyException {
         TotpAuthKey key = new TotpAuthKey();
-        key.keyName = input.readUTF();
-        key.algorithm = input.readUTF();
-        key.src = DataOutputUtil.readByteArray(input);
-        key.issuer = DataOutputUtil.readOptionalString(input);
-        key.digits = input.readInt();
-        key.period = input.readLong();
+        int head = input.readUnsignedByte();
+        if (head == OtpKeyFormat.V2) {
+            key.keyName = DataOutputUtil.readVarString(input);
+            key.algorithm = OtpKeyFormat.readAlgorithm(input);
+            key.src = DataOutputUtil.readVarByteArray(input);
+            key.issuer = DataOutputUtil.readVarString(input);
+            key.digits = DataOutputUtil.readVarInt(input);
+            key.period = DataOutputUtil.readVarLong(input);
+        } else {
+            key.keyName = DataOutputUtil.readUTF(input, head);
+            key.algorithm = input.readUTF();
+            key.src = DataOutputUtil.readByteArray(input);
+            key.issuer = DataOutputUtil.readOptionalString(input);
+            key.digits = input.readInt();
+            key.period = input.readLong();
+        }
+        key.initialize();
+        return key;
+    }
+
+    /**
+     * Reads v2 records in place, v1 records through {@link #deserialize(DataInput)}
+     */
+    @Override
+    public IAuthorizationKey deserialize(ByteBuffer input) throws IOException, InvalidKeyException {
+        int start = input.position();
+        if ((input.get() & 0xFF) != OtpKeyFormat.V2) {
+            input.position(start);
+            return deserialize(DataOutputUtil.asDataInput(input));
+        }
+        TotpAuthKey key = new TotpAuthKey();
+        try {
+            key.keyName = DataOutputUtil.readVarString(input);
+            key.algorithm = OtpKeyFormat.readAlgorithm(input);
+            key.src = DataOutputUtil.readVarByteArray(input);
+            key.issuer = DataOutputUtil.readVarString(input);
+            key.digits = DataOutputUtil.readVarInt(input);
+            key.period = DataOutputUtil.readVarLong(input);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
         key.initialize();
         return key;
     }
@@ -299,8 +600,12 @@ public class OtpAuth
 
     @Override
     public IAuthorizationKey deserialize(URI uri) throws IOException, InvalidKeyException {
+        if (hotp != null && "hotp".equals(uri.getHost())) {
+            return hotp.deserialize(uri);
+        }
         if (!"totp".equals(uri.getHost())) {
-            throw new InvalidKeyException("Only support totp protocol, but got " + uri.getHost());
+            String supported = hotp == null ? "totp protocol" : "totp and hotp protocol";
+            throw new InvalidKeyException("Only support " + supported + ", but got " + uri.getHost());
         }
         String name = uri.getPath().substring(1);
         if (name.isEmpty()) throw new InvalidKeyException("Empty key name");
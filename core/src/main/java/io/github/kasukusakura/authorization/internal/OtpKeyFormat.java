@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import io.github.kasukusakura.authorization.utils.DataOutputUtil;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Shared parts of the binary formats of OTP keys.
+ * <p>
+ * v1 records start with {@link DataOutput#writeUTF(String)} of key name, v2 records start with
+ * {@link #V2}. A key name would need more than 60KiB to collide with the marker.
+ */
+final class OtpKeyFormat {
+    static final int V2 = 0xF2;
+
+    private static final String[] ALGORITHMS = {"SHA1", "SHA256", "SHA512"};
+    private static final int CUSTOM_ALGORITHM = 0xFF;
+
+    private OtpKeyFormat() {
+    }
+
+    static void writeAlgorithm(DataOutput output, String algorithm) throws IOException {
+        String upper = algorithm.toUpperCase(Locale.ROOT);
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            if (ALGORITHMS[i].equals(upper)) {
+                output.writeByte(i);
+                return;
+            }
+        }
+        output.writeByte(CUSTOM_ALGORITHM);
+        DataOutputUtil.writeVarString(output, algorithm);
+    }
+
+    static void writeAlgorithm(ByteBuffer output, String algorithm) {
+        String upper = algorithm.toUpperCase(Locale.ROOT);
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            if (ALGORITHMS[i].equals(upper)) {
+                output.put((byte) i);
+                return;
+            }
+        }
+        output.put((byte) CUSTOM_ALGORITHM);
+        DataOutputUtil.writeVarString(output, algorithm);
+    }
+
+    static String readAlgorithm(ByteBuffer input) throws IOException {
+        int id = input.get() & 0xFF;
+        if (id < ALGORITHMS.length) return ALGORITHMS[id];
+        if (id == CUSTOM_ALGORITHM) return DataOutputUtil.readVarString(input);
+        throw new IOException("Unknown algorithm id: " + id);
+    }
+
+    static String readAlgorithm(DataInput input) throws IOException {
+        int id = input.readUnsignedByte();
+        if (id < ALGORITHMS.length) return ALGORITHMS[id];
+        if (id == CUSTOM_ALGORITHM) return DataOutputUtil.readVarString(input);
+        throw new IOException("Unknown algorithm id: " + id);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HMAC-SHA1 specialized for 8-byte counters.
+ * <p>
+ * The compressed ipad/opad blocks are calculated once when the key is prepared,
+ * so each code only needs the two final compression rounds.
+ * <p>
+ * State layout: {@code [inner H0..H4, outer H0..H4]}
+ */
+final class Sha1HmacEngine extends HmacEngine {
+    static final int STATE_SIZE = 10;
+    private static final int BLOCK_SIZE = 64;
+    private static final int[] IV = {
+            0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0,
+    };
+    // w[0, 80): message schedule, w[80, 85): digest output
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(
+            () -> new int[80 + 5]
+    );
+
+    private final int[] state = new int[STATE_SIZE];
+
+    Sha1HmacEngine(byte[] key) {
+        prepare(key, state, 0);
+    }
+
+    @Override
+    int truncatedHash(long counter) {
+        return truncatedHash(state, 0, counter);
+    }
+
+    static void prepare(byte[] key, int[] state, int offset) {
+        if (key.length > BLOCK_SIZE) {
+            try {
+                key = MessageDigest.getInstance("SHA-1").digest(key);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        int[] w = new int[80 + 5];
+        padKey(key, w, 0x36363636);
+        compress(IV, 0, w, w, 80);
+        System.arraycopy(w, 80, state, offset, 5);
+
+        padKey(key, w, 0x5C5C5C5C);
+        compress(IV, 0, w, w, 80);
+        System.arraycopy(w, 80, state, offset + 5, 5);
+    }
+
+    static int truncatedHash(int[] state, int offset, long counter) {
+        int[] w = SCRATCH.get();
+
+        // inner: H(ipad || counter)
+        w[0] = (int) (counter >>> 32);
+        w[1] = (int) counter;
+        w[2] = 0x80000000;
+        for (int i = 3; i < 15; i++) w[i] = 0;
+        w[15] = (BLOCK_SIZE + 8) * 8;
+        compress(state, offset, w, w, 80);
+
+        // outer: H(opad || inner)
+        System.arraycopy(w, 80, w, 0, 5);
+        w[5] = 0x80000000;
+        for (int i = 6; i < 15; i++) w[i] = 0;
+        w[15] = (BLOCK_SIZE + 20) * 8;
+        compress(state, offset + 5, w, w, 80);
+
+        int hashOffset = w[80 + 4] & 0xF;
+        return readInt(w, 80, hashOffset) & 0x7FFFFFFF;
+    }
+
+    private static void compress(int[] h, int hOff, int[] w, int[] out, int outOff) {
+        for (int t = 16; t < 80; t++) {
+            w[t] = Integer.rotateLeft(w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16], 1);
+        }
+        int a = h[hOff], b = h[hOff + 1], c = h[hOff + 2], d = h[hOff + 3], e = h[hOff + 4];
+        for (int t = 0; t < 80; t++) {
+            int f;
+            if (t < 20) {
+                f = ((b & c) | (~b & d)) + 0x5A827999;
+            } else if (t < 40) {
+                f = (b ^ c ^ d) + 0x6ED9EBA1;
+            } else if (t < 60) {
+                f = ((b & c) | (b & d) | (c & d)) + 0x8F1BBCDC;
+            } else {
+                f = (b ^ c ^ d) + 0xCA62C1D6;
+            }
+            int temp = Integer.rotateLeft(a, 5) + f + e + w[t];
+            e = d;
+            d = c;
+            c = Integer.rotateLeft(b, 30);
+            b = a;
+            a = temp;
+        }
+        out[outOff] = h[hOff] + a;
+        out[outOff + 1] = h[hOff + 1] + b;
+        out[outOff + 2] = h[hOff + 2] + c;
+        out[outOff + 3] = h[hOff + 3] + d;
+        out[outOff + 4] = h[hOff + 4] + e;
+    }
+}
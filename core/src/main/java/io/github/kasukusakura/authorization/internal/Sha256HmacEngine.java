@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HMAC-SHA256 specialized for 8-byte counters.
+ * <p>
+ * State layout: {@code [inner H0..H7, outer H0..H7]}
+ *
+ * @see Sha1HmacEngine
+ */
+final class Sha256HmacEngine extends HmacEngine {
+    static final int STATE_SIZE = 16;
+    private static final int BLOCK_SIZE = 64;
+    private static final int[] IV = {
+            0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A,
+            0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19,
+    };
+    private static final int[] K = {
+            0x428A2F98, 0x71374491, 0xB5C0FBCF, 0xE9B5DBA5, 0x3956C25B, 0x59F111F1, 0x923F82A4, 0xAB1C5ED5,
+            0xD807AA98, 0x12835B01, 0x243185BE, 0x550C7DC3, 0x72BE5D74, 0x80DEB1FE, 0x9BDC06A7, 0xC19BF174,
+            0xE49B69C1, 0xEFBE4786, 0x0FC19DC6, 0x240CA1CC, 0x2DE92C6F, 0x4A7484AA, 0x5CB0A9DC, 0x76F988DA,
+            0x983E5152, 0xA831C66D, 0xB00327C8, 0xBF597FC7, 0xC6E00BF3, 0xD5A79147, 0x06CA6351, 0x14292967,
+            0x27B70A85, 0x2E1B2138, 0x4D2C6DFC, 0x53380D13, 0x650A7354, 0x766A0ABB, 0x81C2C92E, 0x92722C85,
+            0xA2BFE8A1, 0xA81A664B, 0xC24B8B70, 0xC76C51A3, 0xD192E819, 0xD6990624, 0xF40E3585, 0x106AA070,
+            0x19A4C116, 0x1E376C08, 0x2748774C, 0x34B0BCB5, 0x391C0CB3, 0x4ED8AA4A, 0x5B9CCA4F, 0x682E6FF3,
+            0x748F82EE, 0x78A5636F, 0x84C87814, 0x8CC70208, 0x90BEFFFA, 0xA4506CEB, 0xBEF9A3F7, 0xC67178F2,
+    };
+    // w[0, 64): message schedule, w[64, 72): digest output
+    private static final ThreadLocal<int[]> SCRATCH = ThreadLocal.withInitial(
+            () -> new int[64 + 8]
+    );
+
+    private final int[] state = new int[STATE_SIZE];
+
+    Sha256HmacEngine(byte[] key) {
+        prepare(key, state, 0);
+    }
+
+    @Override
+    int truncatedHash(long counter) {
+        return truncatedHash(state, 0, counter);
+    }
+
+    static void prepare(byte[] key, int[] state, int offset) {
+        if (key.length > BLOCK_SIZE) {
+            try {
+                key = MessageDigest.getInstance("SHA-256").digest(key);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        int[] w = new int[64 + 8];
+        padKey(key, w, 0x36363636);
+        compress(IV, 0, w, w, 64);
+        System.arraycopy(w, 64, state, offset, 8);
+
+        padKey(key, w, 0x5C5C5C5C);
+        compress(IV, 0, w, w, 64);
+        System.arraycopy(w, 64, state, offset + 8, 8);
+    }
+
+    static int truncatedHash(int[] state, int offset, long counter) {
+        int[] w = SCRATCH.get();
+
+        // inner: H(ipad || counter)
+        w[0] = (int) (counter >>> 32);
+        w[1] = (int) counter;
+        w[2] = 0x80000000;
+        for (int i = 3; i < 15; i++) w[i] = 0;
+        w[15] = (BLOCK_SIZE + 8) * 8;
+        compress(state, offset, w, w, 64);
+
+        // outer: H(opad || inner)
+        System.arraycopy(w, 64, w, 0, 8);
+        w[8] = 0x80000000;
+        for (int i = 9; i < 15; i++) w[i] = 0;
+        w[15] = (BLOCK_SIZE + 32) * 8;
+        compress(state, offset + 8, w, w, 64);
+
+        int hashOffset = w[64 + 7] & 0xF;
+        return readInt(w, 64, hashOffset) & 0x7FFFFFFF;
+    }
+
+    private static void compress(int[] h, int hOff, int[] w, int[] out, int outOff) {
+        for (int t = 16; t < 64; t++) {
+            int w15 = w[t - 15], w2 = w[t - 2];
+            int s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3);
+            int s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+        int a = h[hOff], b = h[hOff + 1], c = h[hOff + 2], d = h[hOff + 3];
+        int e = h[hOff + 4], f = h[hOff + 5], g = h[hOff + 6], hh = h[hOff + 7];
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = hh + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+            hh = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+        out[outOff] = h[hOff] + a;
+        out[outOff + 1] = h[hOff + 1] + b;
+        out[outOff + 2] = h[hOff + 2] + c;
+        out[outOff + 3] = h[hOff + 3] + d;
+        out[outOff + 4] = h[hOff + 4] + e;
+        out[outOff + 5] = h[hOff + 5] + f;
+        out[outOff + 6] = h[hOff + 6] + g;
+        out[outOff + 7] = h[hOff + 7] + hh;
+    }
+}
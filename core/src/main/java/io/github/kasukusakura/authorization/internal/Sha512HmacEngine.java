@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HMAC-SHA512 specialized for 8-byte counters.
+ * <p>
+ * State layout: {@code [inner H0..H7, outer H0..H7]}
+ *
+ * @see Sha1HmacEngine
+ */
+final class Sha512HmacEngine extends HmacEngine {
+    static final int STATE_SIZE = 16;
+    private static final int BLOCK_SIZE = 128;
+    private static final long[] IV = {
+            0x6A09E667F3BCC908L, 0xBB67AE8584CAA73BL, 0x3C6EF372FE94F82BL, 0xA54FF53A5F1D36F1L,
+            0x510E527FADE682D1L, 0x9B05688C2B3E6C1FL, 0x1F83D9ABFB41BD6BL, 0x5BE0CD19137E2179L,
+    };
+    private static final long[] K = {
+            0x428A2F98D728AE22L, 0x7137449123EF65CDL, 0xB5C0FBCFEC4D3B2FL, 0xE9B5DBA58189DBBCL,
+            0x3956C25BF348B538L, 0x59F111F1B605D019L, 0x923F82A4AF194F9BL, 0xAB1C5ED5DA6D8118L,
+            0xD807AA98A3030242L, 0x12835B0145706FBEL, 0x243185BE4EE4B28CL, 0x550C7DC3D5FFB4E2L,
+            0x72BE5D74F27B896FL, 0x80DEB1FE3B1696B1L, 0x9BDC06A725C71235L, 0xC19BF174CF692694L,
+            0xE49B69C19EF14AD2L, 0xEFBE4786384F25E3L, 0x0FC19DC68B8CD5B5L, 0x240CA1CC77AC9C65L,
+            0x2DE92C6F592B0275L, 0x4A7484AA6EA6E483L, 0x5CB0A9DCBD41FBD4L, 0x76F988DA831153B5L,
+            0x983E5152EE66DFABL, 0xA831C66D2DB43210L, 0xB00327C898FB213FL, 0xBF597FC7BEEF0EE4L,
+            0xC6E00BF33DA88FC2L, 0xD5A79147930AA725L, 0x06CA6351E003826FL, 0x142929670A0E6E70L,
+            0x27B70A8546D22FFCL, 0x2E1B21385C26C926L, 0x4D2C6DFC5AC42AEDL, 0x53380D139D95B3DFL,
+            0x650A73548BAF63DEL, 0x766A0ABB3C77B2A8L, 0x81C2C92E47EDAEE6L, 0x92722C851482353BL,
+            0xA2BFE8A14CF10364L, 0xA81A664BBC423001L, 0xC24B8B70D0F89791L, 0xC76C51A30654BE30L,
+            0xD192E819D6EF5218L, 0xD69906245565A910L, 0xF40E35855771202AL, 0x106AA07032BBD1B8L,
+            0x19A4C116B8D2D0C8L, 0x1E376C085141AB53L, 0x2748774CDF8EEB99L, 0x34B0BCB5E19B48A8L,
+            0x391C0CB3C5C95A63L, 0x4ED8AA4AE3418ACBL, 0x5B9CCA4F7763E373L, 0x682E6FF3D6B2B8A3L,
+            0x748F82EE5DEFB2FCL, 0x78A5636F43172F60L, 0x84C87814A1F0AB72L, 0x8CC702081A6439ECL,
+            0x90BEFFFA23631E28L, 0xA4506CEBDE82BDE9L, 0xBEF9A3F7B2C67915L, 0xC67178F2E372532BL,
+            0xCA273ECEEA26619CL, 0xD186B8C721C0C207L, 0xEADA7DD6CDE0EB1EL, 0xF57D4F7FEE6ED178L,
+            0x06F067AA72176FBAL, 0x0A637DC5A2C898A6L, 0x113F9804BEF90DAEL, 0x1B710B35131C471BL,
+            0x28DB77F523047D84L, 0x32CAAB7B40C72493L, 0x3C9EBE0A15C9BEBCL, 0x431D67C49C100D4CL,
+            0x4CC5D4BECB3E42B6L, 0x597F299CFC657E2AL, 0x5FCB6FAB3AD6FAECL, 0x6C44198C4A475817L,
+    };
+    // w[0, 80): message schedule, w[80, 88): digest output
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(
+            () -> new long[80 + 8]
+    );
+
+    private final long[] state = new long[STATE_SIZE];
+
+    Sha512HmacEngine(byte[] key) {
+        prepare(key, state, 0);
+    }
+
+    @Override
+    int truncatedHash(long counter) {
+        return truncatedHash(state, 0, counter);
+    }
+
+    static void prepare(byte[] key, long[] state, int offset) {
+        if (key.length > BLOCK_SIZE) {
+            try {
+                key = MessageDigest.getInstance("SHA-512").digest(key);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        long[] w = new long[80 + 8];
+        padKey(key, w, 0x3636363636363636L);
+        compress(IV, 0, w, w, 80);
+        System.arraycopy(w, 80, state, offset, 8);
+
+        padKey(key, w, 0x5C5C5C5C5C5C5C5CL);
+        compress(IV, 0, w, w, 80);
+        System.arraycopy(w, 80, state, offset + 8, 8);
+    }
+
+    static int truncatedHash(long[] state, int offset, long counter) {
+        long[] w = SCRATCH.get();
+
+        // inner: H(ipad || counter)
+        w[0] = counter;
+        w[1] = 0x8000000000000000L;
+        for (int i = 2; i < 15; i++) w[i] = 0;
+        w[15] = (BLOCK_SIZE + 8) * 8;
+        compress(state, offset, w, w, 80);
+
+        // outer: H(opad || inner)
+        System.arraycopy(w, 80, w, 0, 8);
+        w[8] = 0x8000000000000000L;
+        for (int i = 9; i < 15; i++) w[i] = 0;
+        w[15] = (BLOCK_SIZE + 64) * 8;
+        compress(state, offset + 8, w, w, 80);
+
+        int hashOffset = (int) (w[80 + 7] & 0xF);
+        int v = 0;
+        for (int i = hashOffset; i < hashOffset + 4; i++) {
+            v = (v << 8) | (int) ((w[80 + (i >>> 3)] >>> (56 - ((i & 7) << 3))) & 0xFF);
+        }
+        return v & 0x7FFFFFFF;
+    }
+
+    private static void padKey(byte[] key, long[] w, long pad) {
+        for (int i = 0; i < 16; i++) {
+            long v = 0;
+            for (int j = 0; j < 8; j++) {
+                int idx = i * 8 + j;
+                v = (v << 8) | (idx < key.length ? key[idx] & 0xFF : 0);
+            }
+            w[i] = v ^ pad;
+        }
+    }
+
+    private static void compress(long[] h, int hOff, long[] w, long[] out, int outOff) {
+        for (int t = 16; t < 80; t++) {
+            long w15 = w[t - 15], w2 = w[t - 2];
+            long s0 = Long.rotateRight(w15, 1) ^ Long.rotateRight(w15, 8) ^ (w15 >>> 7);
+            long s1 = Long.rotateRight(w2, 19) ^ Long.rotateRight(w2, 61) ^ (w2 >>> 6);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+        long a = h[hOff], b = h[hOff + 1], c = h[hOff + 2], d = h[hOff + 3];
+        long e = h[hOff + 4], f = h[hOff + 5], g = h[hOff + 6], hh = h[hOff + 7];
+        for (int t = 0; t < 80; t++) {
+            long s1 = Long.rotateRight(e, 14) ^ Long.rotateRight(e, 18) ^ Long.rotateRight(e, 41);
+            long ch = (e & f) ^ (~e & g);
+            long temp1 = hh + s1 + ch + K[t] + w[t];
+            long s0 = Long.rotateRight(a, 28) ^ Long.rotateRight(a, 34) ^ Long.rotateRight(a, 39);
+            long maj = (a & b) ^ (a & c) ^ (b & c);
+            long temp2 = s0 + maj;
+            hh = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+        out[outOff] = h[hOff] + a;
+        out[outOff + 1] = h[hOff + 1] + b;
+        out[outOff + 2] = h[hOff + 2] + c;
+        out[outOff + 3] = h[hOff + 3] + d;
+        out[outOff + 4] = h[hOff + 4] + e;
+        out[outOff + 5] = h[hOff + 5] + f;
+        out[outOff + 6] = h[hOff + 6] + g;
+        out[outOff + 7] = h[hOff + 7] + hh;
+    }
+}
@@ -16,13 +16,18 @@
 
 package io.github.kasukusakura.authorization.internal;
 
+import io.github.kasukusakura.authorization.AuthClock;
 import io.github.kasukusakura.authorization.Environment;
+import io.github.kasukusakura.authorization.ReplayLedger;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 public class SimpleEnvImpl implements Environment {
     protected final Map<String, String> delegate = new HashMap<>();
+    protected volatile AuthClock clock = AuthClock.SYSTEM;
+    protected volatile ReplayLedger replayLedger;
 
 
     @Override
@@ -39,4 +44,24 @@ public class SimpleEnvImpl implements Environment {
     public String get(String key, String defaultValue) {
         return delegate.getOrDefault(key, defaultValue);
     }
+
+    @Override
+    public AuthClock getClock() {
+        return clock;
+    }
+
+    @Override
+    public void setClock(AuthClock clock) {
+        this.clock = Objects.requireNonNull(clock, "clock");
+    }
+
+    @Override
+    public ReplayLedger getReplayLedger() {
+        return replayLedger;
+    }
+
+    @Override
+    public void setReplayLedger(ReplayLedger ledger) {
+        this.replayLedger = ledger;
+    }
 }
@@ -0,0 +1,530 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+import io.github.kasukusakura.authorization.IAuthorizationService;
+import io.github.kasukusakura.authorization.ReplayLedger;
+import io.github.kasukusakura.authorization.utils.Base32;
+import io.github.kasukusakura.authorization.utils.DataOutputUtil;
+import io.github.kasukusakura.authorization.utils.OtpCodes;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A compact table of TOTP keys stored in primitive columns.
+ * <p>
+ * Keys are addressed by int handles. Secrets are kept in one contiguous buffer,
+ * and the precomputed HMAC state of every key lives in shared int/long columns,
+ * so a key costs a few dozen bytes instead of a graph of objects.
+ * {@link IAuthorizationKey} views are created on demand by {@link #view(int)}.
+ * <p>
+ * Reads are lock-free. Adding and removing keys are serialized.
+ */
+public final class TotpKeyTable {
+    private static final byte REMOVED = -1;
+    private static final byte SHA1 = 0, SHA256 = 1, SHA512 = 2;
+    private static final String[] ALGORITHMS = {"SHA1", "SHA256", "SHA512"};
+    private static final int IDENTITY_SIZE = 32;
+
+    private final OtpAuth service;
+    private final boolean direct;
+
+    private volatile int size;
+
+    // Columns, indexed by handle
+    private byte[] algorithms;
+    private byte[] digits;
+    private int[] periods; // s
+    private int[] secretOffsets;
+    private int[] secretLengths;
+    private int[] stateOffsets;
+    private String[] names;
+    private String[] issuers;
+    private byte[] identities; // SHA-256, IDENTITY_SIZE per handle
+
+    private ByteBuffer secrets;
+    private int[] intStates; // SHA1 & SHA256
+    private int intStatesSize;
+    private long[] longStates; // SHA512
+    private int longStatesSize;
+
+    TotpKeyTable(OtpAuth service, int initialCapacity, boolean direct) {
+        this.service = service;
+        this.direct = direct;
+        initialCapacity = Math.max(initialCapacity, 16);
+        algorithms = new byte[initialCapacity];
+        digits = new byte[initialCapacity];
+        periods = new int[initialCapacity];
+        secretOffsets = new int[initialCapacity];
+        secretLengths = new int[initialCapacity];
+        stateOffsets = new int[initialCapacity];
+        names = new String[initialCapacity];
+        issuers = new String[initialCapacity];
+        identities = new byte[initialCapacity * IDENTITY_SIZE];
+        secrets = allocate(initialCapacity * 20);
+        intStates = new int[initialCapacity * Sha1HmacEngine.STATE_SIZE];
+        longStates = new long[0];
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static byte algorithmId(String algorithm) {
+        if (algorithm == null) return SHA1;
+        for (byte i = 0; i < ALGORITHMS.length; i++) {
+            if (ALGORITHMS[i].equalsIgnoreCase(algorithm)) return i;
+        }
+        throw new IllegalArgumentException("Unsupported algorithm " + algorithm);
+    }
+
+    /**
+     * Copy an existing key into this table
+     *
+     * @return the handle of the new key
+     */
+    public int add(OtpAuth.TotpAuthKey key) {
+        return add(key.keyName, key.issuer, key.src, key.algorithm, key.digits, key.period);
+    }
+
+    /**
+     * @return the handle of the new key
+     */
+    public synchronized int add(String name, String issuer, byte[] secret, String algorithm, int digits, long period) {
+        byte alg = algorithmId(algorithm);
+        // Codes are ints, more digits would overflow the modulus
+        if (digits <= 0 || digits > 9) throw new IllegalArgumentException("Illegal digits: " + digits);
+        if (period <= 0 || period > Integer.MAX_VALUE) throw new IllegalArgumentException("Illegal period: " + period);
+        if (secret.length == 0) throw new IllegalArgumentException("Empty secret");
+
+        int handle = size;
+        if (handle == algorithms.length) {
+            int newCapacity = handle + (handle >> 1);
+            algorithms = Arrays.copyOf(algorithms, newCapacity);
+            this.digits = Arrays.copyOf(this.digits, newCapacity);
+            periods = Arrays.copyOf(periods, newCapacity);
+            secretOffsets = Arrays.copyOf(secretOffsets, newCapacity);
+            secretLengths = Arrays.copyOf(secretLengths, newCapacity);
+            stateOffsets = Arrays.copyOf(stateOffsets, newCapacity);
+            names = Arrays.copyOf(names, newCapacity);
+            issuers = Arrays.copyOf(issuers, newCapacity);
+            identities = Arrays.copyOf(identities, newCapacity * IDENTITY_SIZE);
+        }
+
+        // secret
+        ByteBuffer secrets = this.secrets;
+        int secretOffset = secrets.position();
+        if (secrets.remaining() < secret.length) {
+            ByteBuffer grown = allocate(Math.max(secrets.capacity() * 2, secretOffset + secret.length));
+            secrets.flip();
+            grown.put(secrets);
+            this.secrets = secrets = grown;
+        }
+        secrets.put(secret);
+
+        // HMAC state
+        int stateOffset;
+        if (alg == SHA512) {
+            stateOffset = longStatesSize;
+            long[] states = longStates;
+            if (stateOffset + Sha512HmacEngine.STATE_SIZE > states.length) {
+                states = Arrays.copyOf(states, Math.max(states.length * 2, Sha512HmacEngine.STATE_SIZE * 16));
+            }
+            Sha512HmacEngine.prepare(secret, states, stateOffset);
+            longStates = states;
+            longStatesSize += Sha512HmacEngine.STATE_SIZE;
+        } else {
+            int stateSize = alg == SHA1 ? Sha1HmacEngine.STATE_SIZE : Sha256HmacEngine.STATE_SIZE;
+            stateOffset = intStatesSize;
+            int[] states = intStates;
+            if (stateOffset + stateSize > states.length) {
+                states = Arrays.copyOf(states, Math.max(states.length * 2, stateOffset + stateSize));
+            }
+            if (alg == SHA1) {
+                Sha1HmacEngine.prepare(secret, states, stateOffset);
+            } else {
+                Sha256HmacEngine.prepare(secret, states, stateOffset);
+            }
+            intStates = states;
+            intStatesSize += stateSize;
+        }
+
+        algorithms[handle] = alg;
+        this.digits[handle] = (byte) digits;
+        periods[handle] = (int) period;
+        secretOffsets[handle] = secretOffset;
+        secretLengths[handle] = secret.length;
+        stateOffsets[handle] = stateOffset;
+        names[handle] = name;
+        issuers[handle] = issuer == null || issuer.isEmpty() ? null : issuer;
+        System.arraycopy(
+                OtpAuth.identityDigest(ALGORITHMS[alg], digits, period, secret), 0,
+                identities, handle * IDENTITY_SIZE, IDENTITY_SIZE
+        );
+
+        size = handle + 1; // publish
+        return handle;
+    }
+
+    /**
+     * Remove a key. The handle will not be reused.
+     */
+    public synchronized void remove(int handle) {
+        checkHandle(handle);
+        algorithms[handle] = REMOVED;
+        names[handle] = null;
+        issuers[handle] = null;
+        // Wipe the secret, the HMAC state is left as garbage of a removed key
+        ByteBuffer secrets = this.secrets;
+        for (int i = secretOffsets[handle], end = i + secretLengths[handle]; i < end; i++) {
+            secrets.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * The number of handles ever allocated, including removed ones
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isRemoved(int handle) {
+        checkHandle(handle);
+        return algorithms[handle] == REMOVED;
+    }
+
+    private void checkHandle(int handle) {
+        if (handle < 0 || handle >= size) {
+            throw new IndexOutOfBoundsException("Handle " + handle + " out of " + size);
+        }
+    }
+
+    private byte algorithm(int handle) {
+        checkHandle(handle);
+        byte alg = algorithms[handle];
+        if (alg == REMOVED) throw new IllegalStateException("Key " + handle + " was removed");
+        return alg;
+    }
+
+    private long periodMillis(int handle) {
+        return TimeUnit.SECONDS.toMillis(periods[handle]);
+    }
+
+    private static long modulus(int digits) {
+        long modulus = 1;
+        for (int i = 0; i < digits; i++) modulus *= 10;
+        return modulus;
+    }
+
+    /**
+     * @see OtpAuth.TotpAuthKey#code(long)
+     */
+    public int code(int handle, long frame) {
+        byte alg = algorithm(handle);
+        int offset = stateOffsets[handle];
+        int hash;
+        switch (alg) {
+            case SHA1:
+                hash = Sha1HmacEngine.truncatedHash(intStates, offset, frame);
+                break;
+            case SHA256:
+                hash = Sha256HmacEngine.truncatedHash(intStates, offset, frame);
+                break;
+            default:
+                hash = Sha512HmacEngine.truncatedHash(longStates, offset, frame);
+                break;
+        }
+        return (int) (hash % modulus(digits[handle]));
+    }
+
+    public boolean checkValid(int handle, CharSequence input, long time) {
+        return checkValid(handle, OtpCodes.parse(input), time);
+    }
+
+    public boolean checkValid(int handle, int code, long time) {
+        algorithm(handle);
+        if (code < 0) return false;
+        long now = time / periodMillis(handle);
+        int c0 = code(handle, now), c1 = code(handle, now + 1), c2 = code(handle, now - 1);
+        return OtpCodes.isEqual(c0, code)
+                | OtpCodes.isEqual(c1, code)
+                | OtpCodes.isEqual(c2, code);
+    }
+
+    /**
+     * @return the frame {@code code} was issued for, or -1 if not matched
+     * @see OtpAuth.TotpAuthKey#findValidFrame(CharSequence, long)
+     */
+    public long findValidFrame(int handle, int code, long time) {
+        algorithm(handle);
+        if (code < 0) return -1;
+        long now = time / periodMillis(handle);
+        boolean m0 = OtpCodes.isEqual(code(handle, now - 1), code);
+        boolean m1 = OtpCodes.isEqual(code(handle, now), code);
+        boolean m2 = OtpCodes.isEqual(code(handle, now + 1), code);
+        // Prefer the oldest frame if codes collide
+        if (m0) return now - 1;
+        if (m1) return now;
+        if (m2) return now + 1;
+        return -1;
+    }
+
+    /**
+     * @see IAuthorizationKey#frameExpireTime(long)
+     */
+    public long frameExpireTime(int handle, long frame) {
+        return (frame + 2) * periodMillis(handle);
+    }
+
+    /**
+     * Same identity as {@link OtpAuth.TotpAuthKey#getIdentity()} of the key with the same parameters
+     */
+    public Object getIdentity(int handle) {
+        algorithm(handle);
+        return ByteBuffer.wrap(identities, handle * IDENTITY_SIZE, IDENTITY_SIZE).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @see IAuthorizationKey#renderValidKey(long, char[], int)
+     */
+    public long renderValidKey(int handle, long time, char[] output, int offset) {
+        long periodMs = periodMillis(handle);
+        long frame = time / periodMs;
+        OtpCodes.render(code(handle, frame), digits[handle], output, offset);
+        return (frame + 1) * periodMs;
+    }
+
+    /**
+     * @see IAuthorizationKey#renderValidKey(long, byte[], int)
+     */
+    public long renderValidKey(int handle, long time, byte[] output, int offset) {
+        long periodMs = periodMillis(handle);
+        long frame = time / periodMs;
+        OtpCodes.render(code(handle, frame), digits[handle], output, offset);
+        return (frame + 1) * periodMs;
+    }
+
+    /**
+     * @see IAuthorizationKey#renderValidKey(long, Appendable)
+     */
+    public long renderValidKey(int handle, long time, Appendable output) throws IOException {
+        long periodMs = periodMillis(handle);
+        long frame = time / periodMs;
+        OtpCodes.render(code(handle, frame), digits[handle], output);
+        return (frame + 1) * periodMs;
+    }
+
+    public byte[] getSecret(int handle) {
+        algorithm(handle);
+        byte[] rsp = new byte[secretLengths[handle]];
+        ByteBuffer secrets = this.secrets.duplicate();
+        secrets.position(secretOffsets[handle]);
+        secrets.get(rsp);
+        return rsp;
+    }
+
+    /**
+     * Create a lightweight {@link IAuthorizationKey} backed by this table
+     */
+    public IAuthorizationKey view(int handle) {
+        algorithm(handle);
+        return new KeyView(handle);
+    }
+
+    private class KeyView implements IAuthorizationKey {
+        private final int handle;
+
+        KeyView(int handle) {
+            this.handle = handle;
+        }
+
+        @Override
+        public IAuthorizationService getService() {
+            return service;
+        }
+
+        /**
+         * Same format as {@link OtpAuth.TotpAuthKey#serialize(DataOutput)}
+         */
+        @Override
+        public void serialize(DataOutput output) throws IOException {
+            output.writeByte(OtpKeyFormat.V2);
+            DataOutputUtil.writeVarString(output, names[handle]);
+            OtpKeyFormat.writeAlgorithm(output, ALGORITHMS[algorithm(handle)]);
+            DataOutputUtil.writeVarByteArray(output, getSecret(handle));
+            DataOutputUtil.writeVarString(output, issuers[handle]);
+            DataOutputUtil.writeVarInt(output, digits[handle]);
+            DataOutputUtil.writeVarLong(output, periods[handle]);
+        }
+
+        /**
+         * Same format as {@link OtpAuth.TotpAuthKey#serializeV1(DataOutput)}
+         */
+        @Override
+        public void serializeV1(DataOutput output) throws IOException {
+            output.writeUTF(names[handle]);
+            output.writeUTF(ALGORITHMS[algorithm(handle)]);
+            DataOutputUtil.writeByteArray(output, getSecret(handle));
+            DataOutputUtil.writeOptionalString(output, issuers[handle]);
+            output.writeInt(digits[handle]);
+            output.writeLong(periods[handle]);
+        }
+
+        @Override
+        public boolean checkValid(String input) {
+            return checkCode(OtpCodes.parse(input), service.clock().currentTimeMillis());
+        }
+
+        @Override
+        public boolean checkValid(CharSequence input) {
+            return checkCode(OtpCodes.parse(input), service.clock().currentTimeMillis());
+        }
+
+        @Override
+        public boolean checkValid(CharSequence input, long time) {
+            return checkCode(OtpCodes.parse(input), time);
+        }
+
+        @Override
+        public boolean checkValid(char[] input, int offset, int length) {
+            return checkCode(OtpCodes.parse(input, offset, length), service.clock().currentTimeMillis());
+        }
+
+        @Override
+        public boolean checkValid(ByteBuffer input) {
+            return checkCode(OtpCodes.parse(input), service.clock().currentTimeMillis());
+        }
+
+        /**
+         * @see OtpAuth.TotpAuthKey#checkCode(int, long, long)
+         */
+        private boolean checkCode(int code, long time) {
+            ReplayLedger ledger = service.replayLedger();
+            if (ledger == null) return TotpKeyTable.this.checkValid(handle, code, time);
+            long frame = TotpKeyTable.this.findValidFrame(handle, code, time);
+            return frame >= 0 && ledger.accept(this, frame, time);
+        }
+
+        @Override
+        public long findValidFrame(CharSequence input, long time) {
+            return TotpKeyTable.this.findValidFrame(handle, OtpCodes.parse(input), time);
+        }
+
+        @Override
+        public long frameExpireTime(long frame) {
+            return TotpKeyTable.this.frameExpireTime(handle, frame);
+        }
+
+        @Override
+        public Object getIdentity() {
+            return TotpKeyTable.this.getIdentity(handle);
+        }
+
+        @Override
+        public String getKeyName() {
+            return names[handle];
+        }
+
+        @Override
+        public String calcValidKey() {
+            return calcValidKey(service.clock().currentTimeMillis());
+        }
+
+        @Override
+        public String calcValidKey(long time) {
+            char[] rsp = new char[digits[handle]];
+            renderValidKey(time, rsp, 0);
+            return new String(rsp);
+        }
+
+        @Override
+        public int getCodeLength() {
+            return digits[handle];
+        }
+
+        @Override
+        public long renderValidKey(long time, char[] output, int offset) {
+            return TotpKeyTable.this.renderValidKey(handle, time, output, offset);
+        }
+
+        @Override
+        public long renderValidKey(long time, byte[] output, int offset) {
+            return TotpKeyTable.this.renderValidKey(handle, time, output, offset);
+        }
+
+        @Override
+        public long renderValidKey(long time, Appendable output) throws IOException {
+            return TotpKeyTable.this.renderValidKey(handle, time, output);
+        }
+
+        @Override
+        public long keyNextInvalidatedTime() {
+            return keyNextInvalidatedTime(service.clock().currentTimeMillis());
+        }
+
+        @Override
+        public long keyNextInvalidatedTime(long time) {
+            long periodMs = periodMillis(handle);
+            return (time / periodMs + 1) * periodMs;
+        }
+
+        @Override
+        public Map<String, String> getDetailsInfo() {
+            HashMap<String, String> details = new HashMap<>();
+            details.put("name", names[handle]);
+            details.put("secret", Base32.encode(getSecret(handle)));
+            details.put("algorithm", ALGORITHMS[algorithm(handle)]);
+            details.put("digits", String.valueOf(digits[handle]));
+            details.put("period (s)", String.valueOf(periods[handle]));
+            return details;
+        }
+
+        @Override
+        public boolean rename(String name) {
+            if (name == null || name.isEmpty()) return false;
+            synchronized (TotpKeyTable.this) {
+                algorithm(handle);
+                names[handle] = name;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof KeyView)) return false;
+            KeyView other = (KeyView) o;
+            return other.handle == handle && other.table() == TotpKeyTable.this;
+        }
+
+        private TotpKeyTable table() {
+            return TotpKeyTable.this;
+        }
+
+        @Override
+        public int hashCode() {
+            return handle;
+        }
+    }
+}
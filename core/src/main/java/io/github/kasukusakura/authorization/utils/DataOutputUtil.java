@@ -16,13 +16,25 @@
 
 package io.github.kasukusakura.authorization.utils;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 public class DataOutputUtil {
+    /**
+     * The longest array or string read from a {@link DataInput}, same as the limit of
+     * {@link DataOutput#writeUTF(String)}. Lengths are checked before allocating,
+     * so a corrupted length cannot allocate more.
+     */
+    public static final int MAX_LENGTH = 65535;
+
+    private static int checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_LENGTH) throw new IOException("Illegal length: " + length);
+        return length;
+    }
+
     public static byte[] readByteArray(DataInput input) throws IOException {
-        byte[] src = new byte[input.readInt()];
+        byte[] src = new byte[checkLength(input.readInt())];
         input.readFully(src);
         return src;
     }
@@ -47,4 +59,201 @@ public class DataOutputUtil {
             output.writeUTF(str);
         }
     }
+
+    /**
+     * Finish reading a {@link DataOutput#writeUTF(String)} string whose first byte was already read,
+     * e.g. after checking a format marker
+     */
+    public static String readUTF(DataInput input, int firstByte) throws IOException {
+        int length = ((firstByte & 0xFF) << 8) | input.readUnsignedByte();
+        byte[] data = new byte[length + 2];
+        data[0] = (byte) (length >>> 8);
+        data[1] = (byte) length;
+        input.readFully(data, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(data)).readUTF();
+    }
+
+    /**
+     * Write an unsigned LEB128 varint, 1 byte for values below 128
+     */
+    public static void writeVarInt(DataOutput output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarLong(DataOutput output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte((int) value);
+    }
+
+    public static long readVarLong(DataInput input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static byte[] readVarByteArray(DataInput input) throws IOException {
+        byte[] src = new byte[checkLength(readVarInt(input))];
+        input.readFully(src);
+        return src;
+    }
+
+    public static void writeVarByteArray(DataOutput output, byte[] data) throws IOException {
+        writeVarInt(output, data.length);
+        output.write(data);
+    }
+
+    public static int readVarInt(ByteBuffer input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarInt(ByteBuffer output, int value) {
+        while ((value & ~0x7F) != 0) {
+            output.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.put((byte) value);
+    }
+
+    public static long readVarLong(ByteBuffer input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = input.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    public static void writeVarLong(ByteBuffer output, long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.put((byte) value);
+    }
+
+    public static byte[] readVarByteArray(ByteBuffer input) throws IOException {
+        int length = readVarInt(input);
+        if (length < 0 || length > input.remaining()) throw new EOFException("Length " + length + " out of buffer");
+        byte[] src = new byte[length];
+        input.get(src);
+        return src;
+    }
+
+    public static void writeVarByteArray(ByteBuffer output, byte[] data) {
+        writeVarInt(output, data.length);
+        output.put(data);
+    }
+
+    /**
+     * @see #readVarString(DataInput)
+     */
+    public static String readVarString(ByteBuffer input) throws IOException {
+        int length = readVarInt(input);
+        if (length == 0) return null;
+        length--;
+        if (length < 0 || length > input.remaining()) throw new EOFException("Length " + length + " out of buffer");
+        String str;
+        if (input.hasArray()) {
+            str = new String(input.array(), input.arrayOffset() + input.position(), length, StandardCharsets.UTF_8);
+        } else {
+            ByteBuffer slice = input.slice();
+            slice.limit(length);
+            str = StandardCharsets.UTF_8.decode(slice).toString();
+        }
+        input.position(input.position() + length);
+        return str;
+    }
+
+    /**
+     * @see #writeVarString(DataOutput, String)
+     */
+    public static void writeVarString(ByteBuffer output, String str) {
+        if (str == null) {
+            output.put((byte) 0);
+            return;
+        }
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(output, data.length + 1);
+        output.put(data);
+    }
+
+    /**
+     * A {@link DataInput} reading {@code buffer} in place, the position of buffer follows the read bytes
+     */
+    public static DataInput asDataInput(ByteBuffer buffer) {
+        return new DataInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!buffer.hasRemaining()) return -1;
+                int n = Math.min(len, buffer.remaining());
+                buffer.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return buffer.remaining();
+            }
+        });
+    }
+
+    /**
+     * Read a nullable UTF-8 string with varint length
+     *
+     * @see #writeVarString(DataOutput, String)
+     */
+    public static String readVarString(DataInput input) throws IOException {
+        int length = readVarInt(input);
+        if (length == 0) return null;
+        byte[] data = new byte[checkLength(length - 1)];
+        input.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write a nullable UTF-8 string, prefixed by varint {@code length + 1}, {@code 0} for null
+     */
+    public static void writeVarString(DataOutput output, String str) throws IOException {
+        if (str == null) {
+            output.writeByte(0);
+            return;
+        }
+        byte[] data = str.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(output, data.length + 1);
+        output.write(data);
+    }
 }
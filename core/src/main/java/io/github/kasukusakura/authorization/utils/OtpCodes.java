@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Parsing and comparing numeric one-time codes without allocation.
+ */
+public class OtpCodes {
+    /**
+     * Returned by {@code parse} methods when input is not a valid code
+     */
+    public static final int INVALID = -1;
+
+    private static int digit(int c) {
+        int d = c - '0';
+        return (d >= 0 && d <= 9) ? d : INVALID;
+    }
+
+    /**
+     * Parse the decimal code in {@code input[start, end)}.
+     * A leading {@code '+'} is allowed.
+     *
+     * @return the code, or {@link #INVALID} if input is not a non-negative int
+     */
+    public static int parse(CharSequence input, int start, int end) {
+        if (input == null) return INVALID;
+        if (start < end && input.charAt(start) == '+') start++;
+        if (start >= end) return INVALID;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int d = digit(input.charAt(i));
+            if (d == INVALID) return INVALID;
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE) return INVALID;
+        }
+        return (int) value;
+    }
+
+    public static int parse(CharSequence input) {
+        if (input == null) return INVALID;
+        return parse(input, 0, input.length());
+    }
+
+    /**
+     * @see #parse(CharSequence, int, int)
+     */
+    public static int parse(char[] input, int offset, int length) {
+        if (input == null) return INVALID;
+        int end = offset + length;
+        if (offset < end && input[offset] == '+') offset++;
+        if (offset >= end) return INVALID;
+        long value = 0;
+        for (int i = offset; i < end; i++) {
+            int d = digit(input[i]);
+            if (d == INVALID) return INVALID;
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE) return INVALID;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parse the ASCII code between position and limit of {@code input}.
+     * The position of {@code input} will not be changed.
+     *
+     * @see #parse(CharSequence, int, int)
+     */
+    public static int parse(ByteBuffer input) {
+        if (input == null) return INVALID;
+        int start = input.position(), end = input.limit();
+        if (start < end && input.get(start) == '+') start++;
+        if (start >= end) return INVALID;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int d = digit(input.get(i));
+            if (d == INVALID) return INVALID;
+            value = value * 10 + d;
+            if (value > Integer.MAX_VALUE) return INVALID;
+        }
+        return (int) value;
+    }
+
+    private static final int[] POW10 = {
+            1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000,
+    };
+
+    private static int digitAt(int code, int index) {
+        if (index >= POW10.length) return 0;
+        return (code / POW10[index]) % 10;
+    }
+
+    /**
+     * Write {@code code} zero-padded to {@code digits} chars into {@code output[offset, offset + digits)}
+     */
+    public static void render(int code, int digits, char[] output, int offset) {
+        for (int i = offset + digits; i-- > offset; code /= 10) {
+            output[i] = (char) ('0' + code % 10);
+        }
+    }
+
+    /**
+     * Write {@code code} zero-padded to {@code digits} ASCII bytes into {@code output[offset, offset + digits)}
+     */
+    public static void render(int code, int digits, byte[] output, int offset) {
+        for (int i = offset + digits; i-- > offset; code /= 10) {
+            output[i] = (byte) ('0' + code % 10);
+        }
+    }
+
+    /**
+     * Append {@code code} zero-padded to {@code digits} chars
+     */
+    public static void render(int code, int digits, Appendable output) throws IOException {
+        for (int i = digits; i-- > 0; ) {
+            output.append((char) ('0' + digitAt(code, i)));
+        }
+    }
+
+    /**
+     * Compare two codes without branching on the result
+     */
+    public static boolean isEqual(int a, int b) {
+        int diff = a ^ b;
+        return ((diff | -diff) >>> 31) == 0;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization;
+
+import io.github.kasukusakura.authorization.utils.Base32;
+import io.github.kasukusakura.authorization.utils.DataOutputUtil;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyFormatTest {
+    private final AuthManager manager = AuthManager.newInstance();
+
+    private IAuthorizationKey newKey(String service, String issuer) {
+        Map<String, String> values = new HashMap<>();
+        values.put("name", "user@example.com");
+        values.put("algorithm", "SHA256");
+        values.put("digits", "8");
+        if (issuer != null) values.put("issuer", issuer);
+        return manager.getAuthorizationService(service).generateNewKey(new Random(7), values);
+    }
+
+    private static byte[] write(IOConsumer<DataOutput> writer) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        writer.accept(new DataOutputStream(data));
+        return data.toByteArray();
+    }
+
+    private IAuthorizationKey read(byte[] data) throws Exception {
+        return manager.deserializeKey(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private interface IOConsumer<T> {
+        void accept(T value) throws IOException;
+    }
+
+    private static void assertSameKey(IAuthorizationKey expected, IAuthorizationKey actual) {
+        assertSame(expected.getService(), actual.getService());
+        assertEquals(expected.getIdentity(), actual.getIdentity());
+        assertEquals(expected.getDetailsInfo(), actual.getDetailsInfo());
+        assertEquals(expected.calcValidKey(1234567890L), actual.calcValidKey(1234567890L));
+    }
+
+    @Test
+    void v2RoundTrip() throws Exception {
+        for (String issuer : new String[]{null, "Example"}) {
+            IAuthorizationKey key = newKey("otpauth", issuer);
+            byte[] v2 = write(output -> manager.serializeKey(key, output));
+            byte[] v1 = write(output -> manager.serializeKeyV1(key, output));
+            assertEquals(0xF2, v2[0] & 0xFF);
+            assertTrue(v2.length < v1.length, "v2 is more compact");
+            assertSameKey(key, read(v2));
+        }
+    }
+
+    @Test
+    void v1Fallback() throws Exception {
+        IAuthorizationKey key = newKey("otpauth", "Example");
+        assertSameKey(key, read(write(output -> manager.serializeKeyV1(key, output))));
+
+        // Written field by field as releases before v2 did
+        Map<String, String> details = key.getDetailsInfo();
+        byte[] legacy = write(output -> {
+            output.writeUTF("otpauth");
+            output.writeUTF(details.get("name"));
+            output.writeUTF("SHA256");
+            DataOutputUtil.writeByteArray(output, Base32.decode(details.get("secret")));
+            DataOutputUtil.writeOptionalString(output, "Example");
+            output.writeInt(8);
+            output.writeLong(30);
+        });
+        assertSameKey(key, read(legacy));
+        assertArrayEquals(legacy, write(output -> manager.serializeKeyV1(key, output)));
+    }
+
+    @Test
+    void byteBufferRoundTrip() throws Exception {
+        IAuthorizationKey key = newKey("otpauth", "Example");
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        buffer.put((byte) 0x55);
+        manager.serializeKey(key, buffer);
+        buffer.put(write(output -> manager.serializeKeyV1(key, output)));
+        buffer.flip();
+
+        buffer.get();
+        assertSameKey(key, manager.deserializeKey(buffer));
+        assertSameKey(key, manager.deserializeKey(buffer));
+        assertFalse(buffer.hasRemaining());
+
+        ByteBuffer small = ByteBuffer.allocate(8);
+        assertThrows(BufferOverflowException.class, () -> manager.serializeKey(key, small));
+        assertEquals(0, small.position());
+    }
+
+    @Test
+    void hotpRoundTripKeepsCounter() throws Exception {
+        IAuthorizationKey key = newKey("hotp", null);
+        assertTrue(key.checkValid(key.calcValidKey()));
+        IAuthorizationKey copy = read(write(output -> manager.serializeKey(key, output)));
+        assertEquals(key.getDetailsInfo(), copy.getDetailsInfo());
+        assertEquals(key.calcValidKey(), copy.calcValidKey());
+    }
+
+    @Test
+    void rejectsOversizedLengths() {
+        byte[] data = {(byte) 0xF2, 1, (byte) 0xF2, (byte) 0x80, (byte) 0x80, (byte) 0x40};
+        assertThrows(IOException.class, () -> read(data));
+        byte[] negative = {(byte) 0xF2, 1, (byte) 0xF2, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F};
+        assertThrows(IOException.class, () -> read(negative));
+        assertThrows(IOException.class, () -> read(new byte[]{(byte) 0xF2, 99}));
+    }
+}
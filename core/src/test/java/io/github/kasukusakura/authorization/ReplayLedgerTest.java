@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization;
+
+import io.github.kasukusakura.authorization.internal.OtpAuth;
+import io.github.kasukusakura.authorization.internal.SimpleEnvImpl;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplayLedgerTest {
+    private static final long PERIOD = 30_000;
+
+    private AuthClock.Manual clock;
+    private SimpleEnvImpl environment;
+    private OtpAuth service;
+
+    @BeforeEach
+    void setup() {
+        clock = new AuthClock.Manual(1_000 * PERIOD);
+        environment = new SimpleEnvImpl();
+        environment.setClock(clock);
+        service = new OtpAuth();
+        service.useEnvironment(environment);
+    }
+
+    private IAuthorizationKey key(String secret) {
+        Map<String, String> values = new HashMap<>();
+        values.put("name", "test");
+        values.put("secret", secret);
+        return service.generateNewKey(new Random(), values);
+    }
+
+    private static String code(IAuthorizationKey key, long time) {
+        return key.calcValidKey(time);
+    }
+
+    @Test
+    void codeIsAcceptedOnce() {
+        ReplayLedger ledger = new ReplayLedger(clock, 0, 16);
+        IAuthorizationKey key = key("JBSWY3DPEHPK3PXP");
+        long now = clock.currentTimeMillis();
+
+        assertTrue(ledger.checkValid(key, code(key, now)));
+        assertFalse(ledger.checkValid(key, code(key, now)));
+        assertFalse(ledger.checkValid(key, "000000x"));
+        assertEquals(1, ledger.size());
+    }
+
+    @Test
+    void olderFramesAreRejectedAfterNewerOne() {
+        ReplayLedger ledger = new ReplayLedger(clock, 0, 16);
+        IAuthorizationKey key = key("JBSWY3DPEHPK3PXP");
+        long now = clock.currentTimeMillis();
+
+        // The next frame is still inside the accepted window
+        assertTrue(ledger.checkValid(key, code(key, now + PERIOD), now));
+        assertFalse(ledger.checkValid(key, code(key, now), now));
+        assertTrue(ledger.checkValid(key, code(key, now + 2 * PERIOD), now + PERIOD));
+    }
+
+    @Test
+    void keysLoadedAgainShareRecord() {
+        ReplayLedger ledger = new ReplayLedger(clock, 0, 16);
+        IAuthorizationKey key = key("JBSWY3DPEHPK3PXP");
+        IAuthorizationKey same = key("JBSWY3DPEHPK3PXP");
+        IAuthorizationKey other = key("KRSXG5CTMVRXEZLU");
+        long now = clock.currentTimeMillis();
+
+        assertEquals(key.getIdentity(), same.getIdentity());
+        assertTrue(ledger.checkValid(key, code(key, now)));
+        assertFalse(ledger.checkValid(same, code(same, now)));
+        assertTrue(ledger.checkValid(other, code(other, now)));
+    }
+
+    @Test
+    void environmentLedgerRejectsReusedCodes() {
+        IAuthorizationKey key = key("JBSWY3DPEHPK3PXP");
+        String code = code(key, clock.currentTimeMillis());
+        assertTrue(key.checkValid(code));
+        assertTrue(key.checkValid(code), "no ledger by default");
+
+        environment.setReplayLedger(new ReplayLedger(clock, 0, 16));
+        assertTrue(key.checkValid(code));
+        assertFalse(key.checkValid(code));
+        assertFalse(key.checkValid(code.toCharArray(), 0, code.length()));
+    }
+
+    @Test
+    void expireDropsOldFrames() {
+        ReplayLedger ledger = new ReplayLedger(clock, 0, 16);
+        IAuthorizationKey key = key("JBSWY3DPEHPK3PXP");
+        long now = clock.currentTimeMillis();
+        assertTrue(ledger.checkValid(key, code(key, now)));
+
+        ledger.expire(now + PERIOD);
+        assertEquals(1, ledger.size());
+        ledger.expire(now + 3 * PERIOD);
+        assertEquals(0, ledger.size());
+    }
+
+    @Test
+    void sweepRunsInSmallSteps() {
+        ReplayLedger ledger = new ReplayLedger(clock, 60_000, 256);
+        long now = clock.currentTimeMillis();
+        IAuthorizationKey[] keys = new IAuthorizationKey[200];
+        Random random = new Random(0);
+        for (int i = 0; i < keys.length; i++) {
+            Map<String, String> values = new HashMap<>();
+            values.put("name", "key " + i);
+            keys[i] = service.generateNewKey(random, values);
+            assertTrue(ledger.accept(keys[i], now / PERIOD, now));
+        }
+        assertEquals(keys.length, ledger.size());
+
+        long later = now + 10 * PERIOD;
+        IAuthorizationKey key = keys[0];
+        ledger.accept(key, later / PERIOD, later);
+        int afterFirstStep = ledger.size();
+        assertTrue(afterFirstStep > keys.length / 2, "one verification does not sweep everything");
+        for (int i = 1; i < 10; i++) {
+            ledger.accept(key, later / PERIOD + i, later);
+        }
+        assertEquals(1, ledger.size());
+    }
+
+    @Test
+    void noSweepByDefault() {
+        ReplayLedger ledger = new ReplayLedger();
+        IAuthorizationKey key = key("JBSWY3DPEHPK3PXP");
+        IAuthorizationKey other = key("KRSXG5CTMVRXEZLU");
+        assertTrue(ledger.accept(key, 1, 0));
+        assertTrue(ledger.accept(other, 1, Long.MAX_VALUE / 2));
+        assertEquals(2, ledger.size());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HmacEngineTest {
+    // RFC 6238 Appendix B
+    private static final String SEED_SHA1 = "12345678901234567890";
+    private static final String SEED_SHA256 = "12345678901234567890123456789012";
+    private static final String SEED_SHA512 = "1234567890123456789012345678901234567890123456789012345678901234";
+    private static final long[] TIMES = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+    private static final int[] CODES_SHA1 = {94287082, 7081804, 14050471, 89005924, 69279037, 65353130};
+    private static final int[] CODES_SHA256 = {46119246, 68084774, 67062674, 91819424, 90698825, 77737706};
+    private static final int[] CODES_SHA512 = {90693936, 25091201, 99943326, 93441116, 38618901, 47863826};
+
+    private static void assertRfc6238(HmacEngine engine, int[] codes) throws GeneralSecurityException {
+        for (int i = 0; i < TIMES.length; i++) {
+            assertEquals(codes[i], engine.truncatedHash(TIMES[i] / 30) % 100000000, "T = " + TIMES[i]);
+        }
+    }
+
+    private static byte[] seed(String seed) {
+        return seed.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    void sha1Rfc6238() throws GeneralSecurityException {
+        assertRfc6238(new Sha1HmacEngine(seed(SEED_SHA1)), CODES_SHA1);
+    }
+
+    @Test
+    void sha256Rfc6238() throws GeneralSecurityException {
+        assertRfc6238(new Sha256HmacEngine(seed(SEED_SHA256)), CODES_SHA256);
+    }
+
+    @Test
+    void sha512Rfc6238() throws GeneralSecurityException {
+        assertRfc6238(new Sha512HmacEngine(seed(SEED_SHA512)), CODES_SHA512);
+    }
+
+    @Test
+    void jcaRfc6238() throws GeneralSecurityException {
+        assertRfc6238(new JcaHmacEngine("HmacSHA1", new SecretKeySpec(seed(SEED_SHA1), "RAW")), CODES_SHA1);
+        assertRfc6238(new JcaHmacEngine("HmacSHA256", new SecretKeySpec(seed(SEED_SHA256), "RAW")), CODES_SHA256);
+        assertRfc6238(new JcaHmacEngine("HmacSHA512", new SecretKeySpec(seed(SEED_SHA512), "RAW")), CODES_SHA512);
+    }
+
+    /**
+     * Compare with the JCA implementation, key lengths cover short keys, exact blocks
+     * and keys longer than the block that are hashed first
+     */
+    private static void assertSameAsJca(String algorithm, int blockSize, Function<byte[], HmacEngine> factory)
+            throws GeneralSecurityException {
+        Random random = new Random(0x4B534B4DL);
+        int[] lengths = {1, 10, 20, blockSize - 1, blockSize, blockSize + 1, blockSize * 2, blockSize * 3 + 7};
+        for (int length : lengths) {
+            for (int round = 0; round < 16; round++) {
+                byte[] key = new byte[length];
+                random.nextBytes(key);
+                HmacEngine engine = factory.apply(key);
+                HmacEngine jca = new JcaHmacEngine("Hmac" + algorithm, new SecretKeySpec(key, "RAW"));
+                for (int i = 0; i < 64; i++) {
+                    long counter = i < 4 ? new long[]{0, 1, -1, Long.MIN_VALUE}[i] : random.nextLong();
+                    assertEquals(jca.truncatedHash(counter), engine.truncatedHash(counter),
+                            algorithm + " key length " + length + ", counter " + counter);
+                }
+            }
+        }
+    }
+
+    @Test
+    void sha1SameAsJca() throws GeneralSecurityException {
+        assertSameAsJca("SHA1", 64, Sha1HmacEngine::new);
+    }
+
+    @Test
+    void sha256SameAsJca() throws GeneralSecurityException {
+        assertSameAsJca("SHA256", 64, Sha256HmacEngine::new);
+    }
+
+    @Test
+    void sha512SameAsJca() throws GeneralSecurityException {
+        assertSameAsJca("SHA512", 128, Sha512HmacEngine::new);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotpAuthTest {
+    // RFC 4226 Appendix D, secret "12345678901234567890"
+    private static final String SECRET = "GEZDGNBVGY3TQOJQGEZDGNBVGY3TQOJQ";
+    private static final int[] CODES = {
+            755224, 287082, 359152, 969429, 338314, 254676, 287922, 162583, 399871, 520489,
+    };
+
+    private static HotpAuth.HotpAuthKey key(long counter) throws Exception {
+        return (HotpAuth.HotpAuthKey) new HotpAuth().deserialize(
+                new URI("otpauth://hotp/test?secret=" + SECRET + "&counter=" + counter)
+        );
+    }
+
+    private static String code(HotpAuth.HotpAuthKey key, long counter) {
+        return String.format("%06d", key.code(counter));
+    }
+
+    @Test
+    void rfc4226() throws Exception {
+        HotpAuth.HotpAuthKey key = key(0);
+        for (int i = 0; i < CODES.length; i++) {
+            assertEquals(CODES[i], key.code(i), "counter " + i);
+        }
+        assertEquals(String.format("%06d", CODES[0]), key.calcValidKey());
+    }
+
+    @Test
+    void codesAreAcceptedOnce() throws Exception {
+        HotpAuth.HotpAuthKey key = key(0);
+        assertTrue(key.checkValid("755224"));
+        assertFalse(key.checkValid("755224"));
+        assertEquals(1, key.counter());
+        // Inside the look-ahead window, skipped counters can no longer be used
+        assertTrue(key.checkValid("254676"));
+        assertEquals(6, key.counter());
+        assertFalse(key.checkValid("338314"));
+        assertFalse(key.checkValid("abc"));
+    }
+
+    @Test
+    void resyncMovesPastBothCodes() throws Exception {
+        HotpAuth.HotpAuthKey key = key(0);
+        assertFalse(key.checkValid(code(key, 50)), "outside of look-ahead");
+
+        assertTrue(key.resync(code(key, 50), code(key, 51)));
+        assertEquals(52, key.counter());
+        assertTrue(key.checkValid(code(key, 52)));
+        assertEquals(53, key.counter());
+    }
+
+    @Test
+    void resyncRejectsCodesNotInSequence() throws Exception {
+        HotpAuth.HotpAuthKey key = key(0);
+        assertFalse(key.resync(code(key, 50), code(key, 52)));
+        assertFalse(key.resync(code(key, 51), code(key, 50)));
+        assertFalse(key.resync("", code(key, 1)));
+        // The default window covers 100 counters
+        assertFalse(key.resync(code(key, 150), code(key, 151)));
+        assertEquals(0, key.counter());
+    }
+
+    @Test
+    void resyncWindowFromEnvironment() throws Exception {
+        SimpleEnvImpl environment = new SimpleEnvImpl();
+        environment.put(HotpAuth.ENV_RESYNC_WINDOW, "1000");
+        HotpAuth service = new HotpAuth();
+        service.useEnvironment(environment);
+        HotpAuth.HotpAuthKey key = (HotpAuth.HotpAuthKey) service.deserialize(
+                new URI("otpauth://hotp/test?secret=" + SECRET)
+        );
+        assertTrue(key.resync(code(key, 500), code(key, 501)));
+        assertEquals(502, key.counter());
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.internal;
+
+import io.github.kasukusakura.authorization.AuthClock;
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+import io.github.kasukusakura.authorization.ReplayLedger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TotpKeyTableTest {
+    // RFC 6238 Appendix B
+    private static final long[] TIMES = {59L, 1111111109L, 1111111111L, 1234567890L, 2000000000L, 20000000000L};
+    private static final String[] ALGORITHMS = {"SHA1", "SHA256", "SHA512"};
+    private static final String[] SEEDS = {
+            "12345678901234567890",
+            "12345678901234567890123456789012",
+            "1234567890123456789012345678901234567890123456789012345678901234",
+    };
+    private static final String[][] CODES = {
+            {"94287082", "07081804", "14050471", "89005924", "69279037", "65353130"},
+            {"46119246", "68084774", "67062674", "91819424", "90698825", "77737706"},
+            {"90693936", "25091201", "99943326", "93441116", "38618901", "47863826"},
+    };
+
+    private AuthClock.Manual clock;
+    private SimpleEnvImpl environment;
+    private OtpAuth service;
+    private TotpKeyTable table;
+
+    @BeforeEach
+    void setup() {
+        clock = new AuthClock.Manual(59_000);
+        environment = new SimpleEnvImpl();
+        environment.setClock(clock);
+        service = new OtpAuth();
+        service.useEnvironment(environment);
+        table = service.newKeyTable(2, false);
+    }
+
+    private OtpAuth.TotpAuthKey newKey(String algorithm) {
+        Map<String, String> values = new HashMap<>();
+        values.put("name", "key " + algorithm);
+        values.put("algorithm", algorithm);
+        return (OtpAuth.TotpAuthKey) service.generateNewKey(new Random(1), values);
+    }
+
+    @Test
+    void rfc6238() throws IOException {
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            byte[] seed = SEEDS[i].getBytes(StandardCharsets.US_ASCII);
+            IAuthorizationKey view = table.view(table.add("rfc " + ALGORITHMS[i], null, seed, ALGORITHMS[i], 8, 30));
+            for (int t = 0; t < TIMES.length; t++) {
+                long time = TIMES[t] * 1000;
+                assertEquals(CODES[i][t], view.calcValidKey(time), ALGORITHMS[i] + " T = " + TIMES[t]);
+
+                StringBuilder appended = new StringBuilder();
+                assertEquals((TIMES[t] / 30 + 1) * 30_000, view.renderValidKey(time, appended));
+                assertEquals(CODES[i][t], appended.toString());
+                assertTrue(view.checkValid(CODES[i][t], time));
+            }
+        }
+        assertEquals(3, table.size());
+    }
+
+    @Test
+    void sameCodesAsKey() {
+        for (String algorithm : ALGORITHMS) {
+            OtpAuth.TotpAuthKey key = newKey(algorithm);
+            IAuthorizationKey view = table.view(table.add(key));
+            for (long time = 0; time < 600_000; time += 29_000) {
+                assertEquals(key.calcValidKey(time), view.calcValidKey(time), algorithm + " at " + time);
+                assertEquals(key.findValidFrame(key.calcValidKey(time), time), view.findValidFrame(key.calcValidKey(time), time));
+            }
+        }
+    }
+
+    @Test
+    void viewsShareIdentityWithKey() {
+        OtpAuth.TotpAuthKey key = newKey("SHA256");
+        int handle = table.add(key);
+        IAuthorizationKey view = table.view(handle);
+
+        assertEquals(key.getIdentity(), view.getIdentity());
+        assertEquals(key.getIdentity().hashCode(), view.getIdentity().hashCode());
+        assertEquals(view.getIdentity(), table.view(handle).getIdentity());
+        assertNotSame(view, table.view(handle));
+        assertFalse(view.getIdentity().equals(table.view(table.add(newKey("SHA1"))).getIdentity()));
+    }
+
+    @Test
+    void checkValidOverloads() {
+        IAuthorizationKey view = table.view(table.add(newKey("SHA1")));
+        String code = view.calcValidKey();
+        assertTrue(view.checkValid(code));
+        assertTrue(view.checkValid((CharSequence) code));
+        assertTrue(view.checkValid(("x" + code).toCharArray(), 1, code.length()));
+        assertTrue(view.checkValid(ByteBuffer.wrap(code.getBytes(StandardCharsets.US_ASCII))));
+        assertFalse(view.checkValid("x"));
+        assertFalse(view.checkValid(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    void viewsUseEnvironmentLedger() {
+        OtpAuth.TotpAuthKey key = newKey("SHA1");
+        int handle = table.add(key);
+        String code = key.calcValidKey();
+        environment.setReplayLedger(new ReplayLedger(clock, 0, 16));
+
+        assertTrue(table.view(handle).checkValid(code));
+        assertFalse(table.view(handle).checkValid(code));
+        assertFalse(key.checkValid(code), "the key shares the record of the view");
+
+        ReplayLedger ledger = new ReplayLedger(clock, 0, 16);
+        clock.advance(30_000);
+        String next = key.calcValidKey();
+        assertTrue(ledger.checkValid(table.view(handle), next));
+        assertFalse(ledger.checkValid(table.view(handle), next));
+    }
+
+    @Test
+    void rejectsIllegalDigits() {
+        byte[] secret = new byte[20];
+        assertThrows(IllegalArgumentException.class, () -> table.add("zero", null, secret, "SHA1", 0, 30));
+        assertThrows(IllegalArgumentException.class, () -> table.add("ten", null, secret, "SHA1", 10, 30));
+        assertThrows(IllegalArgumentException.class, () -> table.add("empty", null, new byte[0], "SHA1", 6, 30));
+        assertThrows(IllegalArgumentException.class, () -> table.add("md5", null, secret, "MD5", 6, 30));
+        assertEquals(9, table.view(table.add("nine", null, secret, "SHA1", 9, 30)).calcValidKey().length());
+    }
+
+    @Test
+    void removedKeys() {
+        int removed = table.add(newKey("SHA1"));
+        int kept = table.add(newKey("SHA512"));
+        table.remove(removed);
+
+        assertTrue(table.isRemoved(removed));
+        assertFalse(table.isRemoved(kept));
+        assertThrows(IllegalStateException.class, () -> table.view(removed));
+        assertEquals(6, table.view(kept).calcValidKey().length());
+        assertThrows(IndexOutOfBoundsException.class, () -> table.view(2));
+    }
+}
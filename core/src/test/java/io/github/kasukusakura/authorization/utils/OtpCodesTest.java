@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OtpCodesTest {
+    @Test
+    void parseCharSequence() {
+        assertEquals(123456, OtpCodes.parse("123456"));
+        assertEquals(42, OtpCodes.parse("000042"));
+        assertEquals(42, OtpCodes.parse("+42"));
+        assertEquals(Integer.MAX_VALUE, OtpCodes.parse("2147483647"));
+        assertEquals(34, OtpCodes.parse("12345", 2, 4));
+    }
+
+    @Test
+    void parseInvalid() {
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse((CharSequence) null));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse(""));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse("+"));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse("-1"));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse(" 123"));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse("12a"));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse("2147483648"));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse("99999999999999999999"));
+    }
+
+    @Test
+    void parseCharArray() {
+        char[] input = "xx+0123yy".toCharArray();
+        assertEquals(123, OtpCodes.parse(input, 2, 5));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse(input, 0, 4));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse(input, 2, 0));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse((char[]) null, 0, 0));
+    }
+
+    @Test
+    void parseByteBuffer() {
+        ByteBuffer input = ByteBuffer.wrap("--654321--".getBytes(StandardCharsets.US_ASCII));
+        input.position(2).limit(8);
+        assertEquals(654321, OtpCodes.parse(input));
+        assertEquals(2, input.position());
+        assertEquals(8, input.limit());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(6);
+        direct.put("000007".getBytes(StandardCharsets.US_ASCII)).flip();
+        assertEquals(7, OtpCodes.parse(direct));
+        assertEquals(OtpCodes.INVALID, OtpCodes.parse(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    void renderPadsWithZeros() throws IOException {
+        char[] chars = "##########".toCharArray();
+        OtpCodes.render(42, 6, chars, 2);
+        assertEquals("##000042##", new String(chars));
+
+        byte[] bytes = new byte[8];
+        OtpCodes.render(7, 8, bytes, 0);
+        assertEquals("00000007", new String(bytes, StandardCharsets.US_ASCII));
+
+        StringBuilder builder = new StringBuilder("code ");
+        OtpCodes.render(123, 6, builder);
+        assertEquals("code 000123", builder.toString());
+    }
+
+    @Test
+    void renderRoundTrip() throws IOException {
+        int[] codes = {0, 1, 9, 10, 99999, 100000, 999999};
+        for (int code : codes) {
+            char[] chars = new char[6];
+            OtpCodes.render(code, 6, chars, 0);
+            assertEquals(code, OtpCodes.parse(chars, 0, chars.length));
+            StringBuilder builder = new StringBuilder();
+            OtpCodes.render(code, 6, builder);
+            assertEquals(new String(chars), builder.toString());
+        }
+        StringBuilder wide = new StringBuilder();
+        OtpCodes.render(Integer.MAX_VALUE, 12, wide);
+        assertEquals("002147483647", wide.toString());
+    }
+
+    @Test
+    void isEqual() {
+        assertTrue(OtpCodes.isEqual(0, 0));
+        assertTrue(OtpCodes.isEqual(123456, 123456));
+        assertTrue(OtpCodes.isEqual(OtpCodes.INVALID, OtpCodes.INVALID));
+        assertFalse(OtpCodes.isEqual(123456, 123457));
+        assertFalse(OtpCodes.isEqual(0, Integer.MIN_VALUE));
+        assertFalse(OtpCodes.isEqual(1, OtpCodes.INVALID));
+    }
+}
@@ -16,64 +16,42 @@
 
 package io.github.kasukusakura.authorization.desktop;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.*;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Blowfish encrypted streams.
+ * <p>
+ * Data is processed block by block while streaming, memory usage doesn't depend on file size.
+ */
 public class BFStream {
-    public static InputStream dec(InputStream is, byte[] passwd)
+    private static Cipher cipher(int mode, byte[] passwd)
             throws NoSuchPaddingException,
             NoSuchAlgorithmException,
-            InvalidKeyException,
-            IOException,
-            IllegalBlockSizeException,
-            BadPaddingException {
-        if (passwd == null) return is;
+            InvalidKeyException {
         SecretKeySpec KS = new SecretKeySpec(passwd, "Blowfish");
         Cipher cipher = Cipher.getInstance("Blowfish");
-        cipher.init(Cipher.DECRYPT_MODE, KS);
-
-        CO co = new CO(cipher);
-        is.transferTo(co);
-        is.close();
+        cipher.init(mode, KS);
+        return cipher;
+    }
 
-        return new ByteArrayInputStream(cipher.doFinal(co.toByteArray()));
+    public static InputStream dec(InputStream is, byte[] passwd)
+            throws NoSuchPaddingException,
+            NoSuchAlgorithmException,
+            InvalidKeyException {
+        if (passwd == null) return is;
+        return new CipherInputStream(is, cipher(Cipher.DECRYPT_MODE, passwd));
     }
 
     public static OutputStream enc(OutputStream os, byte[] passwd) throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeyException {
         if (passwd == null) return os;
-        SecretKeySpec KS = new SecretKeySpec(passwd, "Blowfish");
-        Cipher cipher = Cipher.getInstance("Blowfish");
-        cipher.init(Cipher.ENCRYPT_MODE, KS);
-
-        CO co = new CO(cipher);
-        co.transfer = os;
-        return co;
-    }
-
-    private static class CO extends ByteArrayOutputStream {
-        Cipher cipher;
-        OutputStream transfer;
-
-        public CO(Cipher cipher) {
-            this.cipher = cipher;
-        }
-
-
-        @Override
-        public void close() throws IOException {
-            if (transfer != null) {
-                try (OutputStream os = transfer) {
-                    os.write(cipher.doFinal(toByteArray()));
-                } catch (IllegalBlockSizeException | BadPaddingException e) {
-                    throw new IOException(e);
-                }
-            }
-        }
+        return new CipherOutputStream(os, cipher(Cipher.ENCRYPT_MODE, passwd));
     }
 }
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+import io.github.kasukusakura.authorization.desktop.MainDisplay.RenderedLabel;
+
+import javax.swing.*;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Refreshes displayed codes when their frame expires instead of polling every key.
+ * <p>
+ * Keys are grouped by the time their current code becomes invalid, so all keys sharing a
+ * period share one wake-up. The codes of a group are calculated slightly before the boundary
+ * and handed to the event dispatch thread as one batch right at the boundary.
+ * <p>
+ * Only rows on screen are calculated, so keys scrolled out of view are not decrypted or
+ * hashed. Skipped rows are parked and calculated at once when they are shown again.
+ */
+class CodeScheduler {
+    /**
+     * How long before a frame boundary the next codes are calculated
+     */
+    static final long PRECOMPUTE_LEAD = 250;
+    /**
+     * Refresh interval of keys without {@link IAuthorizationKey#keyNextInvalidatedTime(long)}
+     */
+    static final long FALLBACK_REFRESH = TimeUnit.SECONDS.toMillis(10);
+
+    private final ScheduledExecutorService executor;
+    private final TreeMap<Long, List<RenderedLabel>> groups = new TreeMap<>();
+    private final Set<RenderedLabel> visible = new HashSet<>();
+    private final Set<RenderedLabel> parked = new HashSet<>();
+    private ScheduledFuture<?> wakeUp;
+    private long wakeUpTime = Long.MAX_VALUE;
+    private boolean suspended;
+
+    CodeScheduler(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    private static long now() {
+        return MainDisplay.AUTH_MANAGER.getClock().currentTimeMillis();
+    }
+
+    /**
+     * Schedule {@code label} for an immediate refresh
+     */
+    void add(RenderedLabel label) {
+        synchronized (groups) {
+            enqueue(Long.MIN_VALUE, label);
+            reschedule();
+        }
+    }
+
+    /**
+     * Replace the rows on screen, parked rows among them are refreshed immediately
+     */
+    void setVisible(Collection<RenderedLabel> labels) {
+        synchronized (groups) {
+            visible.clear();
+            visible.addAll(labels);
+            boolean shown = false;
+            for (RenderedLabel label : labels) {
+                if (parked.remove(label)) {
+                    enqueue(Long.MIN_VALUE, label);
+                    shown = true;
+                }
+            }
+            if (shown) reschedule();
+        }
+    }
+
+    /**
+     * Forget a label removed from the list
+     */
+    void remove(RenderedLabel label) {
+        synchronized (groups) {
+            visible.remove(label);
+            parked.remove(label);
+        }
+    }
+
+    /**
+     * Stop refreshing until {@link #resume()}, no timer is kept pending meanwhile
+     */
+    void suspend() {
+        synchronized (groups) {
+            suspended = true;
+            if (wakeUp != null) {
+                wakeUp.cancel(false);
+                wakeUp = null;
+                wakeUpTime = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Resume refreshing. Only the groups whose frames expired meanwhile are recalculated at once
+     */
+    void resume() {
+        synchronized (groups) {
+            if (!suspended) return;
+            suspended = false;
+            reschedule();
+        }
+    }
+
+    private void enqueue(long boundary, RenderedLabel label) {
+        groups.computeIfAbsent(boundary, k -> new ArrayList<>()).add(label);
+    }
+
+    // Must hold `groups`
+    private void reschedule() {
+        if (suspended || groups.isEmpty()) return;
+        long first = groups.firstKey();
+        long at = first == Long.MIN_VALUE ? first : first - PRECOMPUTE_LEAD;
+        if (wakeUp != null) {
+            if (at >= wakeUpTime) return;
+            wakeUp.cancel(false);
+        }
+        wakeUpTime = at;
+        long delay = at == Long.MIN_VALUE ? 0 : Math.max(0, at - now());
+        wakeUp = executor.schedule(this::wake, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void wake() {
+        long now = now();
+        List<Map.Entry<Long, List<RenderedLabel>>> due = new ArrayList<>();
+        synchronized (groups) {
+            wakeUp = null;
+            wakeUpTime = Long.MAX_VALUE;
+            while (!groups.isEmpty()) {
+                long first = groups.firstKey();
+                if (first != Long.MIN_VALUE && first - PRECOMPUTE_LEAD > now) break;
+                due.add(groups.pollFirstEntry());
+            }
+        }
+        try {
+            for (Map.Entry<Long, List<RenderedLabel>> group : due) {
+                refresh(Math.max(group.getKey(), now), group.getValue());
+            }
+        } finally {
+            synchronized (groups) {
+                reschedule();
+            }
+        }
+    }
+
+    private void refresh(long boundary, List<RenderedLabel> labels) {
+        List<RenderedLabel> shown = new ArrayList<>(labels.size());
+        synchronized (groups) {
+            for (RenderedLabel label : labels) {
+                if (label.removed) continue;
+                if (visible.contains(label)) {
+                    shown.add(label);
+                } else {
+                    parked.add(label);
+                }
+            }
+        }
+        List<RenderedLabel> alive = new ArrayList<>(shown.size());
+        List<String> codes = new ArrayList<>(shown.size());
+        List<Long> startTimes = new ArrayList<>(shown.size());
+        List<Long> nextTimes = new ArrayList<>(shown.size());
+        List<Boolean> framed = new ArrayList<>(shown.size());
+        for (RenderedLabel label : shown) {
+            IAuthorizationKey key = label.declaredKey;
+            String code;
+            long next = -1, start = boundary;
+            boolean hasFrame = false;
+            try {
+                code = key.calcValidKey(boundary);
+                if (code != null) next = key.keyNextInvalidatedTime(boundary);
+                if (next > boundary && next != Long.MAX_VALUE) {
+                    // The boundary is the current time after a resume or for a new row,
+                    // the frame started one period before its end
+                    long following = key.keyNextInvalidatedTime(next);
+                    if (following > next && following != Long.MAX_VALUE) {
+                        start = next - (following - next);
+                        hasFrame = true;
+                    }
+                }
+            } catch (Throwable throwable) {
+                throwable.printStackTrace();
+                code = null;
+            }
+            framed.add(hasFrame);
+            if (next <= boundary) next = boundary + FALLBACK_REFRESH;
+            alive.add(label);
+            codes.add(code);
+            startTimes.add(start);
+            nextTimes.add(next);
+        }
+        if (alive.isEmpty()) return;
+
+        synchronized (groups) {
+            for (int i = 0; i < alive.size(); i++) {
+                long next = nextTimes.get(i);
+                if (next != Long.MAX_VALUE) enqueue(next, alive.get(i));
+            }
+        }
+
+        Runnable flip = () -> SwingUtilities.invokeLater(() -> {
+            for (int i = 0; i < alive.size(); i++) {
+                RenderedLabel label = alive.get(i);
+                if (label.removed) continue;
+                String code = codes.get(i);
+                label.code = code == null ? "<Calc valid key failed>" : code;
+                label.startTime = startTimes.get(i);
+                label.nextTime = nextTimes.get(i);
+                MainDisplay.PERIOD_HEADER.update(label, framed.get(i));
+            }
+            MainDisplay.KEY_LIST.repaint();
+        });
+        long delay = boundary - now();
+        if (delay > 0) {
+            executor.schedule(flip, delay, TimeUnit.MILLISECONDS);
+        } else {
+            flip.run();
+        }
+    }
+}
@@ -28,6 +28,11 @@ import java.io.File;
 public class Configuration {
     public boolean passwordProtected = false;
     public boolean firstUse = true;
+    public String vaultSalt;
+    /**
+     * {@code files} for one file per key, {@code log} for {@link LogVault}
+     */
+    public String storageEngine = "files";
 
     public static Configuration INSTANCE;
 
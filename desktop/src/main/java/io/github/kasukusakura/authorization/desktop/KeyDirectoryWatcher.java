@@ -0,0 +1,261 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+
+import javax.swing.*;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Watches {@link KeyStorage#KEYS_STORAGE} for keys changed by other processes.
+ * <p>
+ * An index of size, mtime and checksum of every known key file is kept, so only files
+ * whose content actually changed are loaded, replaced or removed. Events are debounced
+ * and applied to the UI as one batch. Files that fail to decode, e.g. still being written,
+ * are retried a few times.
+ */
+class KeyDirectoryWatcher {
+    private static final long QUIET_PERIOD = 300;
+    private static final long MAX_DELAY = 2000;
+    private static final long RETRY_DELAY = 1000;
+    private static final int MAX_RETRIES = 5;
+
+    private static class FileState {
+        final long size;
+        final long modified;
+        final long checksum;
+
+        FileState(long size, long modified, long checksum) {
+            this.size = size;
+            this.modified = modified;
+            this.checksum = checksum;
+        }
+    }
+
+    private final Path dir;
+    private final Map<String, FileState> index = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread thread;
+
+    KeyDirectoryWatcher(File dir) {
+        this.dir = dir.toPath();
+    }
+
+    private static long checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    private static boolean isKeyFile(String name) {
+        return !name.endsWith(KeyWriteQueue.TEMP_SUFFIX) && !name.equals(KeyStorage.PASSWORD_MARKER);
+    }
+
+    /**
+     * Read a key file and remember its state
+     */
+    IAuthorizationKey readKey(File keyFile) throws Exception {
+        Path path = keyFile.toPath();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        byte[] data = Files.readAllBytes(path);
+        IAuthorizationKey key = KeyStorage.decodeKey(new ByteArrayInputStream(data), false);
+        record(keyFile, attributes, data);
+        return key;
+    }
+
+    /**
+     * Remember the state of a key file written by this process
+     */
+    void record(File keyFile, byte[] data) {
+        try {
+            record(keyFile, Files.readAttributes(keyFile.toPath(), BasicFileAttributes.class), data);
+        } catch (IOException e) {
+            index.remove(keyFile.getName());
+        }
+    }
+
+    /**
+     * Remember the state of a key file this process is about to move into place from {@code written}
+     */
+    void expect(File keyFile, Path written, byte[] data) throws IOException {
+        record(keyFile, Files.readAttributes(written, BasicFileAttributes.class), data);
+    }
+
+    private void record(File keyFile, BasicFileAttributes attributes, byte[] data) {
+        index.put(keyFile.getName(), new FileState(
+                attributes.size(), attributes.lastModifiedTime().toMillis(), checksum(data)
+        ));
+    }
+
+    void forget(File keyFile) {
+        index.remove(keyFile.getName());
+    }
+
+    void reset() {
+        index.clear();
+    }
+
+    synchronized void start() {
+        if (thread != null) return;
+        try {
+            Files.createDirectories(dir);
+            watchService = dir.getFileSystem().newWatchService();
+            dir.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE
+            );
+        } catch (IOException e) {
+            new RuntimeException("Exception in watching " + dir, e).printStackTrace();
+            return;
+        }
+        thread = new Thread(this::run, "Key Directory Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void run() {
+        WatchService watchService = this.watchService;
+        Map<String, Integer> retries = new HashMap<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = retries.isEmpty()
+                        ? watchService.take()
+                        : watchService.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+                Set<String> changed = new HashSet<>(retries.keySet());
+                boolean overflow = false;
+                long deadline = System.currentTimeMillis() + MAX_DELAY;
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            String name = event.context().toString();
+                            if (isKeyFile(name)) changed.add(name);
+                        }
+                    }
+                    key.reset();
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    key = watchService.poll(Math.min(QUIET_PERIOD, remaining), TimeUnit.MILLISECONDS);
+                }
+                if (overflow) {
+                    changed.addAll(index.keySet());
+                    String[] names = dir.toFile().list();
+                    if (names != null) {
+                        for (String name : names) {
+                            if (isKeyFile(name)) changed.add(name);
+                        }
+                    }
+                }
+                if (changed.isEmpty()) continue;
+                Set<String> failed = process(changed);
+                retries.keySet().retainAll(failed);
+                for (String name : failed) {
+                    if (retries.merge(name, 1, Integer::sum) > MAX_RETRIES) {
+                        // Given up until the file changes again
+                        retries.remove(name);
+                    }
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignored) {
+        }
+    }
+
+    /**
+     * @return names of the files failed to decode
+     */
+    private Set<String> process(Set<String> changed) {
+        Set<String> failed = new HashSet<>();
+        if (!KeyStorage.isWatching()) return failed;
+        Map<File, IAuthorizationKey> loaded = new LinkedHashMap<>();
+        List<File> removed = new ArrayList<>();
+        for (String name : changed) {
+            File file = dir.resolve(name).toFile();
+            FileState old = index.get(name);
+            if (!file.isFile()) {
+                if (old != null) {
+                    index.remove(name);
+                    removed.add(file);
+                }
+                continue;
+            }
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                if (old != null
+                        && old.size == attributes.size()
+                        && old.modified == attributes.lastModifiedTime().toMillis()
+                ) continue;
+                byte[] data = Files.readAllBytes(file.toPath());
+                if (old != null && old.size == data.length && old.checksum == checksum(data)) {
+                    record(file, attributes, data);
+                    continue;
+                }
+                IAuthorizationKey key = KeyStorage.decodeKey(new ByteArrayInputStream(data), false);
+                record(file, attributes, data);
+                loaded.put(file, key);
+            } catch (NoSuchFileException e) {
+                if (old != null) {
+                    index.remove(name);
+                    removed.add(file);
+                }
+            } catch (Exception e) {
+                // Probably still being written
+                new RuntimeException("Exception in reading key: " + file, e).printStackTrace();
+                failed.add(name);
+            }
+        }
+        if (loaded.isEmpty() && removed.isEmpty()) return failed;
+
+        SwingUtilities.invokeLater(() -> {
+            for (File file : removed) {
+                IAuthorizationKey key = KeyStorage.keyOf(file);
+                if (key != null) {
+                    KeyStorage.unbindKey(key);
+                    MainDisplay.removeKey(key);
+                }
+            }
+            for (Map.Entry<File, IAuthorizationKey> entry : loaded.entrySet()) {
+                KeyStorage.bindFile(entry.getValue(), entry.getKey());
+                MainDisplay.displayKey(entry.getValue());
+            }
+            MainDisplay.BottomMsgUpdater.nextDisplayMsg = "Keys updated: "
+                    + loaded.size() + " loaded, " + removed.size() + " removed";
+        });
+        return failed;
+    }
+}
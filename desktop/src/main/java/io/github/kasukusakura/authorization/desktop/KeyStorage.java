@@ -17,17 +17,32 @@
 package io.github.kasukusakura.authorization.desktop;
 
 import io.github.kasukusakura.authorization.IAuthorizationKey;
-import io.github.kasukusakura.authorization.IAuthorizationService;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 import java.util.regex.Pattern;
 
 import static io.github.kasukusakura.authorization.desktop.MainDisplay.MAIN_FRAME;
@@ -45,24 +60,251 @@ public class KeyStorage {
     public static final File KEYS_STORAGE = new File(
             STORAGE, "keys"
     );
+    public static final File LOG_STORAGE = new File(
+            STORAGE, "keys.vault"
+    );
+    private static final File STAGING_STORAGE = new File(
+            STORAGE, "keys.staging"
+    );
+    private static final File RETIRED_STORAGE = new File(
+            STORAGE, "keys.old"
+    );
+    /**
+     * Records in {@link #KEYS_STORAGE} whether its keys are password protected. Written with the
+     * re-encrypted keys and swapped in together with them, so a crash before the configuration
+     * is saved cannot leave {@link Configuration#passwordProtected} describing the old keys
+     */
+    static final String PASSWORD_MARKER = ".password";
+    private static final String MARKER_PROTECTED = "protected";
+    private static final String MARKER_NONE = "none";
 
+    /**
+     * Keys and their files, only accessed from the event dispatch thread
+     */
     public static Map<IAuthorizationKey, File> KEYS = new HashMap<>();
+    /**
+     * Reverse of {@link #KEYS}, kept in sync by {@link #bindFile} and {@link #unbindKey}
+     */
+    private static final Map<File, IAuthorizationKey> FILES = new HashMap<>();
+
+    private static final ExecutorService LOADER = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())),
+            new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Key Loader #" + counter.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            }
+    );
+    private static final AtomicInteger RELOAD_GENERATION = new AtomicInteger();
+    private static volatile LogVault logVault;
+    private static final KeyWriteQueue WRITE_QUEUE = new KeyWriteQueue();
+    static final KeyDirectoryWatcher WATCHER = new KeyDirectoryWatcher(KEYS_STORAGE);
+
+    /**
+     * Key file with metadata header:
+     * {@code [magic][int header length][encrypted header][encrypted key]}.
+     * Header holds service, name and {@link #METADATA_FIELDS}, see {@link LazyKey}
+     */
+    private static final int LAZY_KEY_MAGIC = 0x4B534B4D; // KSKM
+    private static final List<String> METADATA_FIELDS = Arrays.asList(
+            "issuer", "algorithm", "digits", "period (s)"
+    );
+
+    static IAuthorizationKey decodeKey(InputStream is, boolean external) throws Exception {
+        return decodeKey(is, external ? null : passwd);
+    }
+
+    static IAuthorizationKey decodeKey(InputStream is, byte[] passwd) throws Exception {
+        PushbackInputStream pis = new PushbackInputStream(is, 4);
+        byte[] magic = new byte[4];
+        int read = pis.readNBytes(magic, 0, magic.length);
+        if (read == magic.length && ByteBuffer.wrap(magic).getInt() == LAZY_KEY_MAGIC) {
+            return decodeLazyKey(pis, passwd);
+        }
+        pis.unread(magic, 0, read);
 
-    public static void loadKey(File keyFile, boolean external) {
         try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
-                BFStream.dec(new FileInputStream(keyFile), external ? null : passwd)
+                VaultStream.dec(pis, passwd)
         ))) {
-            String type = dis.readUTF();
-            IAuthorizationService service = MainDisplay.AUTH_MANAGER.getAuthorizationService(type);
-            if (service == null) {
-                throw new NoSuchAlgorithmException("Service not found: " + type);
+            return MainDisplay.AUTH_MANAGER.deserializeKey(dis);
+        }
+    }
+
+    private static LazyKey decodeLazyKey(InputStream is, byte[] passwd) throws Exception {
+        byte[] header, body;
+        try (DataInputStream dis = new DataInputStream(is)) {
+            int length = dis.readInt();
+            byte[] rest = dis.readAllBytes();
+            if (length < 0 || length > rest.length) {
+                throw new IOException("Broken key file, header of " + length + " bytes in " + rest.length);
+            }
+            header = Arrays.copyOf(rest, length);
+            body = Arrays.copyOfRange(rest, length, rest.length);
+        }
+        try (DataInputStream dis = new DataInputStream(
+                VaultStream.dec(new ByteArrayInputStream(header), passwd)
+        )) {
+            String service = dis.readUTF();
+            String name = dis.readUTF();
+            Map<String, String> metadata = new HashMap<>();
+            for (int i = dis.readUnsignedShort(); i > 0; i--) {
+                metadata.put(dis.readUTF(), dis.readUTF());
+            }
+            return new LazyKey(service, name, metadata, body, passwd);
+        }
+    }
+
+    private static OutputStream encrypt(OutputStream os, byte[] passwd) throws IOException {
+        try {
+            return VaultStream.enc(os, passwd);
+        } catch (GeneralSecurityException e) {
+            os.close();
+            throw new IOException(e);
+        }
+    }
+
+    static void encodeKey(IAuthorizationKey key, OutputStream os, boolean external) throws IOException {
+        if (external) {
+            // Exported keys keep the plain v1 layout, so older releases can import them
+            encodeRecord(key, os, null);
+            return;
+        }
+        encodeKey(key, os, passwd);
+    }
+
+    static void encodeKey(IAuthorizationKey key, OutputStream os, byte[] passwd) throws IOException {
+        encodeKey(snapshot(key), os, passwd);
+    }
+
+    /**
+     * Plain content of a key, taken when a write is queued so that the writer
+     * never reads a key while it is being edited
+     */
+    static final class KeySnapshot {
+        final String service;
+        final String name;
+        final Map<String, String> metadata;
+        final byte[] record;
+
+        KeySnapshot(String service, String name, Map<String, String> metadata, byte[] record) {
+            this.service = service;
+            this.name = name;
+            this.metadata = metadata;
+            this.record = record;
+        }
+    }
+
+    static KeySnapshot snapshot(IAuthorizationKey key) throws IOException {
+        Map<String, String> details = key.getDetailsInfo();
+        Map<String, String> metadata = new LinkedHashMap<>();
+        for (String field : METADATA_FIELDS) {
+            String value = details == null ? null : details.get(field);
+            if (value != null) metadata.put(field, value);
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(record)) {
+            MainDisplay.AUTH_MANAGER.serializeKey(key, dos);
+        }
+        return new KeySnapshot(key.getService().getName(), key.getKeyName(), metadata, record.toByteArray());
+    }
+
+    static void encodeKey(KeySnapshot snapshot, OutputStream os) throws IOException {
+        encodeKey(snapshot, os, passwd);
+    }
+
+    private static void encodeKey(KeySnapshot snapshot, OutputStream os, byte[] passwd) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(encrypt(header, passwd))) {
+            dos.writeUTF(snapshot.service);
+            dos.writeUTF(snapshot.name);
+            dos.writeShort(snapshot.metadata.size());
+            for (Map.Entry<String, String> field : snapshot.metadata.entrySet()) {
+                dos.writeUTF(field.getKey());
+                dos.writeUTF(field.getValue());
             }
-            IAuthorizationKey key = service.deserialize(dis);
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (OutputStream output = encrypt(body, passwd)) {
+            output.write(snapshot.record);
+        }
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os))) {
+            dos.writeInt(LAZY_KEY_MAGIC);
+            dos.writeInt(header.size());
+            header.writeTo(dos);
+            body.writeTo(dos);
+        }
+    }
+
+    private static void encodeRecord(IAuthorizationKey key, OutputStream os, byte[] passwd) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(encrypt(os, passwd)))) {
+            MainDisplay.AUTH_MANAGER.serializeKeyV1(key, dos);
+        }
+    }
+
+    static IAuthorizationKey readKey(File keyFile, boolean external) throws Exception {
+        return decodeKey(new FileInputStream(keyFile), external);
+    }
+
+    private static boolean useLogVault() {
+        return "log".equals(Configuration.INSTANCE.storageEngine);
+    }
+
+    static boolean isWatching() {
+        return !useLogVault();
+    }
+
+    static IAuthorizationKey keyOf(File file) {
+        return FILES.get(file);
+    }
+
+    /**
+     * Associate {@code key} with {@code file}, replacing the key previously loaded from it
+     */
+    static void bindFile(IAuthorizationKey key, File file) {
+        IAuthorizationKey existing = FILES.get(file);
+        if (existing != null && existing != key) {
+            unbindKey(existing);
+            MainDisplay.removeKey(existing);
+        }
+        File previous = KEYS.put(key, file);
+        if (previous != null && !previous.equals(file)) FILES.remove(previous, key);
+        FILES.put(file, key);
+    }
+
+    /**
+     * Forget the file of {@code key}
+     *
+     * @return the file {@code key} was stored in, null if none
+     */
+    static File unbindKey(IAuthorizationKey key) {
+        File file = KEYS.remove(key);
+        if (file != null) FILES.remove(file, key);
+        return file;
+    }
+
+    /**
+     * All stored keys
+     */
+    public static Collection<IAuthorizationKey> keys() {
+        LogVault vault = logVault;
+        if (vault != null) return vault.keys();
+        return new ArrayList<>(KEYS.keySet());
+    }
+
+    public static void loadKey(File keyFile, boolean external) {
+        try {
+            IAuthorizationKey key = readKey(keyFile, external);
 
             if (external) {
                 saveKey(key);
             } else {
-                KEYS.put(key, keyFile);
+                bindFile(key, keyFile);
             }
 
             MainDisplay.displayKey(key);
@@ -87,39 +329,333 @@ public class KeyStorage {
         );
         byte[] rd = new byte[bb.remaining()];
         bb.get(rd);
-        passwd = rd;
+        setPassword(rd);
+    }
+
+    public static void setPassword(byte[] passwd) {
+        KeyStorage.passwd = passwd;
+        VaultKey.reset();
+        ZXing.clear();
     }
 
+    /**
+     * Reload all keys from {@link #KEYS_STORAGE}.
+     * <p>
+     * Pending writes are committed first, then files are listed, read and decrypted on
+     * {@link #LOADER}; only clearing and displaying keys and the password prompt happen on the
+     * event dispatch thread, loaded keys are handed to it in batches. A newer reload discards results of the older one.
+     */
     public static void reloadKeys() {
-        MainDisplay.KEYS.removeIf(it -> {
-            JPanel panel = it.declaredPanel;
-            Container panelParent = panel.getParent();
-            if (panelParent != null) {
-                panelParent.remove(panel);
-            }
-            return true;
+        int generation = RELOAD_GENERATION.incrementAndGet();
+        SwingUtilities.invokeLater(() -> {
+            MainDisplay.KEYS.clear();
+            KEYS.clear();
+            FILES.clear();
         });
-        KEYS.clear();
+        ZXing.clear();
+
+        // Chained instead of flush() on a loader thread, the writer may itself wait for loaders
+        WRITE_QUEUE.submit(() -> LOADER.execute(() -> {
+            if (RELOAD_GENERATION.get() == generation) loadKeys(generation);
+        }));
+    }
+
+    private static void loadKeys(int generation) {
+        boolean log = useLogVault();
+        if (!log) {
+            LogVault vault = logVault;
+            if (vault != null) {
+                logVault = null;
+                try {
+                    vault.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            // May correct passwordProtected, so before asking for the password
+            recoverKeysStorage();
+        }
 
         if (Configuration.INSTANCE.passwordProtected && passwd == null) {
-            readPasswd();
+            try {
+                SwingUtilities.invokeAndWait(KeyStorage::readPasswd);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (InvocationTargetException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+
+        if (log) {
+            WATCHER.stop();
+            new KeyLoading(generation, null).startLog();
+            return;
+        }
+        WATCHER.reset();
+        WATCHER.start();
+        File[] listFiles = listKeyFiles(KEYS_STORAGE);
+        if (listFiles == null || listFiles.length == 0) {
+            SwingUtilities.invokeLater(() -> MainDisplay.showProgress(null, 0, 0));
+            return;
+        }
+
+        new KeyLoading(generation, listFiles).start();
+    }
+
+    private static class KeyLoading {
+        private final int generation;
+        private final File[] files;
+        private final ConcurrentLinkedQueue<Map.Entry<File, IAuthorizationKey>> loaded = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        private int completed;
+
+        KeyLoading(int generation, File[] files) {
+            this.generation = generation;
+            this.files = files;
+        }
+
+        void startLog() {
+            SwingUtilities.invokeLater(() -> MainDisplay.showProgress("Loading keys", 0, 1));
+            LOADER.execute(() -> {
+                LogVault vault = logVault;
+                if (vault == null) vault = logVault = new LogVault(LOG_STORAGE);
+                try {
+                    vault.open(KEYS_STORAGE, key -> publish(null, key));
+                } catch (IOException e) {
+                    new RuntimeException("Exception in opening " + LOG_STORAGE, e).printStackTrace();
+                    MainDisplay.BottomMsgUpdater.nextDisplayMsg = e.toString();
+                }
+                SwingUtilities.invokeLater(() -> {
+                    if (RELOAD_GENERATION.get() == generation) MainDisplay.showProgress(null, 1, 1);
+                });
+            });
+        }
+
+        private void publish(File keyFile, IAuthorizationKey key) {
+            loaded.add(new AbstractMap.SimpleImmutableEntry<>(keyFile, key));
+            if (drainScheduled.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this::drain);
+            }
+        }
+
+        void start() {
+            SwingUtilities.invokeLater(() -> MainDisplay.showProgress("Loading keys", 0, files.length));
+            for (File keyFile : files) {
+                LOADER.execute(() -> {
+                    if (RELOAD_GENERATION.get() != generation) return;
+                    IAuthorizationKey key = null;
+                    try {
+                        key = WATCHER.readKey(keyFile);
+                    } catch (Exception e) {
+                        new RuntimeException("Exception in reading key: " + keyFile, e).printStackTrace();
+                        MainDisplay.BottomMsgUpdater.nextDisplayMsg = e.toString();
+                    }
+                    publish(keyFile, key);
+                });
+            }
+        }
+
+        private void drain() {
+            drainScheduled.set(false);
+            if (RELOAD_GENERATION.get() != generation) {
+                loaded.clear();
+                return;
+            }
+            List<IAuthorizationKey> batch = new ArrayList<>();
+            Map.Entry<File, IAuthorizationKey> result;
+            while ((result = loaded.poll()) != null) {
+                completed++;
+                IAuthorizationKey key = result.getValue();
+                if (key == null) continue;
+                if (result.getKey() != null) bindFile(key, result.getKey());
+                batch.add(key);
+            }
+            for (IAuthorizationKey key : batch) {
+                MainDisplay.displayKey(key);
+            }
+            if (files != null) MainDisplay.showProgress("Loading keys", completed, files.length);
+        }
+    }
+
+    /**
+     * Change the password and re-encrypt all stored keys with it, then reload keys.
+     * <p>
+     * Key files are re-encrypted in parallel into a staging directory that replaces
+     * {@link #KEYS_STORAGE} once complete. If any key fails, nothing is changed.
+     *
+     * @param newPasswd null to store keys without password
+     */
+    public static Future<?> changePassword(byte[] newPasswd) {
+        return WRITE_QUEUE.submit(() -> {
+            byte[] oldPasswd = passwd;
+            BiConsumer<Integer, Integer> progress = (done, total) -> SwingUtilities.invokeLater(
+                    () -> MainDisplay.showProgress("Re-encrypting keys", done, total)
+            );
+            try {
+                if (useLogVault()) {
+                    LogVault vault = logVault;
+                    if (vault == null && LOG_STORAGE.isFile()) {
+                        vault = logVault = new LogVault(LOG_STORAGE);
+                        vault.open(null, key -> {
+                        });
+                    }
+                    if (vault != null) {
+                        vault.rewrite(payload -> transcode(payload, oldPasswd, newPasswd), LOADER, progress);
+                    }
+                    // The key directory no longer follows the configuration
+                    Files.deleteIfExists(new File(KEYS_STORAGE, PASSWORD_MARKER).toPath());
+                } else {
+                    reencryptFiles(oldPasswd, newPasswd, progress);
+                }
+            } catch (Exception e) {
+                new RuntimeException("Exception in changing password", e).printStackTrace();
+                MainDisplay.BottomMsgUpdater.nextDisplayMsg = "Password not changed: " + e;
+                SwingUtilities.invokeLater(() -> MainDisplay.showProgress(null, 0, 0));
+                return;
+            }
+            setPassword(newPasswd);
+            Configuration.INSTANCE.passwordProtected = newPasswd != null;
+            Configuration.save();
+            MainDisplay.BottomMsgUpdater.nextDisplayMsg = "Password changed";
+            SwingUtilities.invokeLater(KeyStorage::reloadKeys);
+        });
+    }
+
+    private static byte[] transcode(byte[] data, byte[] oldPasswd, byte[] newPasswd) throws Exception {
+        IAuthorizationKey key = decodeKey(new ByteArrayInputStream(data), oldPasswd);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        encodeKey(key, result, newPasswd);
+        return result.toByteArray();
+    }
+
+    private static void reencryptFiles(
+            byte[] oldPasswd, byte[] newPasswd, BiConsumer<Integer, Integer> progress
+    ) throws IOException {
+        recoverKeysStorage();
+        File[] files = listKeyFiles(KEYS_STORAGE);
+        if (files == null || files.length == 0) {
+            Files.createDirectories(KEYS_STORAGE.toPath());
+            writePasswordMarker(KEYS_STORAGE.toPath(), newPasswd != null);
+            return;
+        }
+
+        Path staging = STAGING_STORAGE.toPath();
+        Files.createDirectories(staging);
+        AtomicInteger completed = new AtomicInteger();
+        List<Future<?>> tasks = new ArrayList<>(files.length);
+        for (File keyFile : files) {
+            tasks.add(LOADER.submit(() -> {
+                byte[] data = transcode(Files.readAllBytes(keyFile.toPath()), oldPasswd, newPasswd);
+                try (FileChannel channel = FileChannel.open(staging.resolve(keyFile.getName()),
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE
+                )) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    channel.force(true);
+                }
+                progress.accept(completed.incrementAndGet(), files.length);
+                return null;
+            }));
+        }
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                try {
+                    tasks.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IOException("Exception in re-encrypting " + files[i], e.getCause());
+                }
+            }
+        } catch (IOException e) {
+            for (Future<?> task : tasks) task.cancel(true);
+            deleteDirectory(STAGING_STORAGE);
+            throw e;
+        }
+        writePasswordMarker(staging, newPasswd != null);
+        KeyWriteQueue.syncDirectory(staging);
+
+        WATCHER.stop();
+        Files.move(KEYS_STORAGE.toPath(), RETIRED_STORAGE.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.move(staging, KEYS_STORAGE.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        KeyWriteQueue.syncDirectory(STORAGE.toPath());
+        deleteDirectory(RETIRED_STORAGE);
+    }
+
+    /**
+     * Finish or roll back an interrupted re-encryption, so that the keys are either all old or all new
+     */
+    private static void recoverKeysStorage() {
+        if (RETIRED_STORAGE.exists()) {
+            if (!KEYS_STORAGE.exists()) {
+                try {
+                    Files.move(RETIRED_STORAGE.toPath(), KEYS_STORAGE.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                deleteDirectory(RETIRED_STORAGE);
+            }
+        }
+        if (STAGING_STORAGE.exists()) {
+            deleteDirectory(STAGING_STORAGE);
+        }
+
+        File marker = new File(KEYS_STORAGE, PASSWORD_MARKER);
+        if (!marker.isFile()) return;
+        try {
+            boolean protect = MARKER_PROTECTED.equals(
+                    new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim()
+            );
+            if (Configuration.INSTANCE.passwordProtected != protect) {
+                // Crashed after the keys were swapped, before the configuration was saved
+                System.err.println("Password protection of " + KEYS_STORAGE + " is " + protect + ", fixing configuration");
+                Configuration.INSTANCE.passwordProtected = protect;
+                Configuration.save();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+    }
+
+    private static void writePasswordMarker(Path dir, boolean protect) throws IOException {
+        Path marker = dir.resolve(PASSWORD_MARKER);
+        Path temp = dir.resolve(PASSWORD_MARKER + KeyWriteQueue.TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+        )) {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(protect ? MARKER_PROTECTED : MARKER_NONE);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(temp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        KeyWriteQueue.syncDirectory(dir);
+    }
 
-        File[] listFiles = KEYS_STORAGE.listFiles();
-        if (listFiles == null) return;
-        for (File keyFile : listFiles) {
-            loadKey(keyFile, false);
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
         }
+        dir.delete();
     }
 
     public static void saveKey(IAuthorizationKey key) {
         if (key == null) return;
 
+        LogVault vault = logVault;
+        if (vault != null) {
+            WRITE_QUEUE.save(key, null, vault);
+            return;
+        }
+
         File file = KEYS.get(key);
         if (file == null) {
-            KEYS.put(key, file = sokName(key));
+            bindFile(key, file = sokName(key));
         }
-        save(key, file, false);
+        WRITE_QUEUE.save(key, file, null);
     }
 
     public static void dumpKey(IAuthorizationKey key, File target) {
@@ -127,8 +663,14 @@ public class KeyStorage {
     }
 
     public static void deleteKey(IAuthorizationKey key) {
-        File file = KEYS.remove(key);
-        if (file != null) file.delete();
+        LogVault vault = logVault;
+        if (vault != null) {
+            WRITE_QUEUE.delete(key, null, vault);
+        } else {
+            File file = unbindKey(key);
+            if (file != null) WRITE_QUEUE.delete(key, file, null);
+        }
+        key.release();
     }
 
     public static String dropIllegalCharacters(String n) {
@@ -140,25 +682,41 @@ public class KeyStorage {
         int counter = 0;
         File sf = new File(KEYS_STORAGE, n + ".key");
         do {
-            if (!sf.exists()) return sf;
+            if (!sf.exists() && !FILES.containsKey(sf)) return sf;
 
             counter++;
             sf = new File(KEYS_STORAGE, n + "_" + counter + ".key");
         } while (true);
     }
 
+    static File[] listKeyFiles(File dir) {
+        return dir.listFiles(it -> !it.getName().endsWith(KeyWriteQueue.TEMP_SUFFIX)
+                && !it.getName().equals(PASSWORD_MARKER)
+        );
+    }
+
     private static void save(IAuthorizationKey key, File file, boolean ext) {
         KEYS_STORAGE.mkdirs();
-        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
-                BFStream.enc(new FileOutputStream(file), ext ? null : passwd)
-        ))) {
-            dos.writeUTF(key.getService().getName());
-            key.serialize(dos);
+        try {
+            encodeKey(key, new FileOutputStream(file), ext);
         } catch (Exception e) {
             new RuntimeException("Exception in writing " + file + "(" + key.getKeyName() + ")", e).printStackTrace();
         }
     }
 
+    public static void shutdown() {
+        WATCHER.stop();
+        WRITE_QUEUE.shutdown();
+        LogVault vault = logVault;
+        if (vault != null) {
+            try {
+                vault.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public static void openExplorer() {
         STORAGE.mkdirs();
         try {
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Write-behind queue of key saves and deletes.
+ * <p>
+ * Operations of the same key are coalesced, only the latest one is written.
+ * The content of a saved key is snapshotted when queued, the writer thread only encrypts it.
+ * A {@link LazyKey} not decrypted yet cannot be edited, so it is snapshotted and decrypted
+ * by the writer thread instead of the caller, usually the event dispatch thread.
+ * Key files are written to a temp file, the whole batch is synced together and
+ * then atomically renamed into place, so a crash never leaves a half-written key.
+ */
+class KeyWriteQueue {
+    static final String TEMP_SUFFIX = ".tmp";
+    private static final long COALESCE_DELAY = 200;
+
+    private static class Op {
+        final IAuthorizationKey key;
+        final File file;
+        final LogVault vault;
+        final KeyStorage.KeySnapshot snapshot;
+        final boolean delete;
+
+        Op(IAuthorizationKey key, File file, LogVault vault, KeyStorage.KeySnapshot snapshot, boolean delete) {
+            this.key = key;
+            this.file = file;
+            this.vault = vault;
+            this.snapshot = snapshot;
+            this.delete = delete;
+        }
+
+        KeyStorage.KeySnapshot snapshot() throws IOException {
+            return snapshot != null ? snapshot : KeyStorage.snapshot(key);
+        }
+
+        String describe() {
+            return (file == null ? "vault" : file.toString()) + "(" + (snapshot == null ? key : snapshot.name) + ")";
+        }
+    }
+
+    private final Map<IAuthorizationKey, Op> pending = new LinkedHashMap<>();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Key Writer");
+        t.setDaemon(true);
+        return t;
+    });
+    private boolean scheduled;
+
+    /**
+     * Queue a save of {@code key} to {@code file}, or to {@code vault} if not null
+     */
+    void save(IAuthorizationKey key, File file, LogVault vault) {
+        if (key instanceof LazyKey && !((LazyKey) key).isResolved()) {
+            enqueue(new Op(key, file, vault, null, false));
+            return;
+        }
+        KeyStorage.KeySnapshot snapshot;
+        try {
+            snapshot = KeyStorage.snapshot(key);
+        } catch (Exception e) {
+            report("Exception in saving " + key.getKeyName(), e);
+            return;
+        }
+        enqueue(new Op(key, file, vault, snapshot, false));
+    }
+
+    /**
+     * Queue a delete of {@code key} from {@code file}, or from {@code vault} if not null
+     */
+    void delete(IAuthorizationKey key, File file, LogVault vault) {
+        enqueue(new Op(key, file, vault, null, true));
+    }
+
+    private synchronized void enqueue(Op op) {
+        pending.remove(op.key);
+        pending.put(op.key, op);
+        if (!scheduled) {
+            scheduled = true;
+            writer.schedule(this::drain, COALESCE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Write all queued operations and wait for them
+     */
+    void flush() {
+        try {
+            writer.submit(this::drain).get();
+        } catch (RejectedExecutionException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    /**
+     * Run {@code task} on the writer thread after all queued operations
+     */
+    Future<?> submit(Runnable task) {
+        return writer.submit(() -> {
+            drain();
+            task.run();
+        });
+    }
+
+    void shutdown() {
+        flush();
+        writer.shutdown();
+    }
+
+    private void drain() {
+        List<Op> batch;
+        synchronized (this) {
+            scheduled = false;
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        List<LogVault> vaults = new ArrayList<>();
+        List<Op> files = new ArrayList<>();
+        for (Op op : batch) {
+            if (op.vault == null) {
+                files.add(op);
+                continue;
+            }
+            // Already taken out of pending, a failure must not stop the rest of the batch
+            try {
+                if (op.delete) {
+                    op.vault.delete(op.key);
+                } else {
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    KeyStorage.encodeKey(op.snapshot(), payload);
+                    op.vault.put(op.key, payload.toByteArray());
+                }
+            } catch (Exception e) {
+                report("Exception in writing " + op.describe(), e);
+            }
+            if (!vaults.contains(op.vault)) vaults.add(op.vault);
+        }
+        for (LogVault vault : vaults) {
+            try {
+                vault.sync();
+            } catch (Exception e) {
+                report("Exception in syncing vault", e);
+            }
+        }
+        if (!files.isEmpty()) commitFiles(files);
+    }
+
+    private static void report(String message, Exception e) {
+        new RuntimeException(message, e).printStackTrace();
+        MainDisplay.BottomMsgUpdater.nextDisplayMsg = message + ": " + e;
+    }
+
+    private static void commitFiles(List<Op> batch) {
+        List<Op> written = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        List<FileChannel> channels = new ArrayList<>();
+        try {
+            for (Op op : batch) {
+                if (op.delete) continue;
+                Path temp = temp(op.file);
+                try {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    KeyStorage.encodeKey(op.snapshot(), data);
+                    Files.createDirectories(temp.getParent());
+                    FileChannel channel = FileChannel.open(temp,
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+                    );
+                    channels.add(channel);
+                    byte[] content = data.toByteArray();
+                    ByteBuffer buffer = ByteBuffer.wrap(content);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    written.add(op);
+                    contents.add(content);
+                } catch (Exception e) {
+                    report("Exception in writing " + op.describe(), e);
+                    deleteQuietly(temp);
+                }
+            }
+            for (FileChannel channel : channels) {
+                try {
+                    channel.force(true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            for (FileChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        for (int i = 0; i < written.size(); i++) {
+            Op op = written.get(i);
+            try {
+                // Recorded before the move, so the watcher never takes this write for an external change
+                KeyStorage.WATCHER.expect(op.file, temp(op.file), contents.get(i));
+                Files.move(temp(op.file), op.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                KeyStorage.WATCHER.record(op.file, contents.get(i));
+            } catch (Exception e) {
+                report("Exception in replacing " + op.describe(), e);
+                // The file on disk is unknown again, the next event loads it as is
+                KeyStorage.WATCHER.forget(op.file);
+                deleteQuietly(temp(op.file));
+            }
+        }
+        for (Op op : batch) {
+            if (!op.delete) continue;
+            KeyStorage.WATCHER.forget(op.file);
+            deleteQuietly(op.file.toPath());
+        }
+        syncDirectory(KeyStorage.KEYS_STORAGE.toPath());
+    }
+
+    private static Path temp(File file) {
+        return file.toPath().resolveSibling(file.getName() + TEMP_SUFFIX);
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void syncDirectory(Path dir) {
+        // Persists the renames, not supported on all platforms
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+}
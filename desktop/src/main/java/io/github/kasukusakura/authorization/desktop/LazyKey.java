@@ -0,0 +1,250 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+import io.github.kasukusakura.authorization.IAuthorizationService;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A key loaded from its metadata header only.
+ * <p>
+ * The encrypted body holding the secret is decrypted when the key is first used,
+ * e.g. a code is computed or the details are opened. If it cannot be decrypted,
+ * e.g. the password is wrong, methods answer as an unsupported key would,
+ * and the ones declaring {@link IOException} throw it.
+ */
+public class LazyKey implements IAuthorizationKey {
+    private final String serviceName;
+    private final String keyName;
+    private final Map<String, String> metadata;
+    private byte[] body;
+    private byte[] passwd;
+    private volatile IAuthorizationKey resolved;
+    private volatile IOException failure;
+
+    LazyKey(String serviceName, String keyName, Map<String, String> metadata, byte[] body, byte[] passwd) {
+        this.serviceName = serviceName;
+        this.keyName = keyName;
+        this.metadata = Collections.unmodifiableMap(metadata);
+        this.body = body;
+        this.passwd = passwd;
+    }
+
+    /**
+     * The plain details stored in header, without secret
+     */
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public boolean isResolved() {
+        return resolved != null;
+    }
+
+    /**
+     * Decrypt the body and get the real key. A failure is remembered, the body is not decrypted again
+     *
+     * @throws IOException if the body cannot be decrypted
+     */
+    public IAuthorizationKey resolve() throws IOException {
+        IAuthorizationKey key = resolved;
+        if (key != null) return key;
+        synchronized (this) {
+            key = resolved;
+            if (key != null) return key;
+            if (failure != null) throw new IOException(failure.getMessage(), failure);
+            try {
+                key = KeyStorage.decodeKey(new ByteArrayInputStream(body), passwd);
+            } catch (Exception e) {
+                failure = new IOException("Exception in decrypting key " + keyName, e);
+                failure.printStackTrace();
+                MainDisplay.BottomMsgUpdater.nextDisplayMsg = failure.getMessage();
+                throw new IOException(failure.getMessage(), failure);
+            }
+            body = null;
+            passwd = null;
+            return resolved = key;
+        }
+    }
+
+    /**
+     * @return null if the body cannot be decrypted
+     */
+    private IAuthorizationKey tryResolve() {
+        try {
+            return resolve();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public IAuthorizationService getService() {
+        IAuthorizationKey key = resolved;
+        if (key != null) return key.getService();
+        return MainDisplay.AUTH_MANAGER.getAuthorizationService(serviceName);
+    }
+
+    @Override
+    public String getKeyName() {
+        IAuthorizationKey key = resolved;
+        if (key != null) return key.getKeyName();
+        return keyName;
+    }
+
+    @Override
+    public void serialize(DataOutput output) throws IOException {
+        resolve().serialize(output);
+    }
+
+    @Override
+    public void serializeV1(DataOutput output) throws IOException {
+        resolve().serializeV1(output);
+    }
+
+    @Override
+    public boolean checkValid(String input) {
+        IAuthorizationKey key = tryResolve();
+        return key != null && key.checkValid(input);
+    }
+
+    @Override
+    public boolean checkValid(CharSequence input) {
+        IAuthorizationKey key = tryResolve();
+        return key != null && key.checkValid(input);
+    }
+
+    @Override
+    public boolean checkValid(CharSequence input, long time) {
+        IAuthorizationKey key = tryResolve();
+        return key != null && key.checkValid(input, time);
+    }
+
+    @Override
+    public long findValidFrame(CharSequence input, long time) {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? -1 : key.findValidFrame(input, time);
+    }
+
+    @Override
+    public long frameExpireTime(long frame) {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? Long.MAX_VALUE : key.frameExpireTime(frame);
+    }
+
+    @Override
+    public void release() {
+        // Nothing was allocated for the secret before it was decrypted
+        IAuthorizationKey key = resolved;
+        if (key != null) key.release();
+    }
+
+    @Override
+    public Object getIdentity() {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? this : key.getIdentity();
+    }
+
+    @Override
+    public boolean checkValid(char[] input, int offset, int length) {
+        IAuthorizationKey key = tryResolve();
+        return key != null && key.checkValid(input, offset, length);
+    }
+
+    @Override
+    public boolean checkValid(ByteBuffer input) {
+        IAuthorizationKey key = tryResolve();
+        return key != null && key.checkValid(input);
+    }
+
+    @Override
+    public String serializeToUri() {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? null : key.serializeToUri();
+    }
+
+    @Override
+    public String calcValidKey() {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? null : key.calcValidKey();
+    }
+
+    @Override
+    public String calcValidKey(long time) {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? null : key.calcValidKey(time);
+    }
+
+    @Override
+    public int getCodeLength() {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? -1 : key.getCodeLength();
+    }
+
+    @Override
+    public long renderValidKey(long time, char[] output, int offset) {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? -1 : key.renderValidKey(time, output, offset);
+    }
+
+    @Override
+    public long renderValidKey(long time, byte[] output, int offset) {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? -1 : key.renderValidKey(time, output, offset);
+    }
+
+    @Override
+    public long renderValidKey(long time, Appendable output) throws IOException {
+        return resolve().renderValidKey(time, output);
+    }
+
+    @Override
+    public long keyNextInvalidatedTime() {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? -1 : key.keyNextInvalidatedTime();
+    }
+
+    @Override
+    public long keyNextInvalidatedTime(long time) {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? -1 : key.keyNextInvalidatedTime(time);
+    }
+
+    @Override
+    public Map<String, String> getDetailsInfo() {
+        IAuthorizationKey key = tryResolve();
+        return key == null ? metadata : key.getDetailsInfo();
+    }
+
+    @Override
+    public boolean rename(String name) {
+        IAuthorizationKey key = tryResolve();
+        return key != null && key.rename(name);
+    }
+
+    @Override
+    public String toString() {
+        return "LazyKey[" + serviceName + ", " + getKeyName() + "]";
+    }
+}
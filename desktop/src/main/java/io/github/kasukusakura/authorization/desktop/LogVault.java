@@ -0,0 +1,467 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps all keys in a single append-only log.
+ * <p>
+ * File format: {@code [magic 4][version 4]} followed by records of
+ * {@code [int payload length][byte op][long key id][payload][int crc32]}.
+ * A put record carries the encrypted key, a delete record has no payload.
+ * The last record of an id wins. A torn or corrupted tail is cut off when opening.
+ * <p>
+ * Live records are located by an in-memory offset index, and the log is compacted
+ * in background once dead records take more space than live ones. Compaction copies
+ * live records without holding the vault lock, only records appended meanwhile,
+ * tombstones of keys deleted meanwhile and the final swap are done under it.
+ */
+public class LogVault implements Closeable {
+    private static final int MAGIC = 0x4B53564C; // KSVL
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 4 + 1 + 8 + 4;
+    private static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+    private static final long COMPACT_THRESHOLD = 64 * 1024;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Key Vault Compactor");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Record {
+        final long id;
+        long offset;
+        final int size;
+
+        Record(long id, long offset, int size) {
+            this.id = id;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final Path file;
+    private FileChannel channel;
+    private final Map<Long, Record> index = new HashMap<>();
+    private final Map<IAuthorizationKey, Long> ids = new ConcurrentHashMap<>();
+    private long nextId = 1;
+    private long liveBytes, deadBytes;
+    private boolean compacting;
+
+    public LogVault(File file) {
+        this.file = file.toPath();
+    }
+
+    /**
+     * Open the log and decode all live keys.
+     * If the log does not exist yet, keys of the per-file layout in {@code importFrom} are imported.
+     */
+    public synchronized void open(File importFrom, Consumer<IAuthorizationKey> consumer) throws IOException {
+        close();
+        boolean exists = Files.isRegularFile(file);
+        Files.createDirectories(file.getParent());
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.clear();
+        ids.clear();
+        nextId = 1;
+        liveBytes = deadBytes = 0;
+
+        if (!exists || channel.size() < HEADER_SIZE) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(true);
+            if (!exists) importFiles(importFrom, consumer);
+            return;
+        }
+
+        Map<Long, byte[]> payloads = new LinkedHashMap<>();
+        long validEnd = scan(payloads);
+        if (validEnd < channel.size()) {
+            System.err.println("Truncating broken tail of " + file + " at " + validEnd);
+            channel.truncate(validEnd);
+            channel.force(true);
+        }
+        channel.position(channel.size());
+
+        for (Map.Entry<Long, byte[]> entry : payloads.entrySet()) {
+            try {
+                IAuthorizationKey key = KeyStorage.decodeKey(new ByteArrayInputStream(entry.getValue()), false);
+                ids.put(key, entry.getKey());
+                consumer.accept(key);
+            } catch (Exception e) {
+                // Keep the record so that it survives compaction, e.g. when the password is wrong
+                new RuntimeException("Exception in reading key #" + entry.getKey() + " of " + file, e).printStackTrace();
+                MainDisplay.BottomMsgUpdater.nextDisplayMsg = e.toString();
+            }
+        }
+    }
+
+    private long scan(Map<Long, byte[]> payloads) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(channel.position(0))
+        ));
+        if (input.readInt() != MAGIC) throw new IOException("Not a key vault: " + file);
+        int version = input.readInt();
+        if (version != VERSION) throw new IOException("Unsupported key vault version " + version + ": " + file);
+
+        long offset = HEADER_SIZE;
+        long size = channel.size();
+        CRC32 crc = new CRC32();
+        while (offset + RECORD_OVERHEAD <= size) {
+            int length = input.readInt();
+            if (length < 0 || length > MAX_PAYLOAD || offset + RECORD_OVERHEAD + length > size) break;
+            byte op = input.readByte();
+            long id = input.readLong();
+            byte[] payload = new byte[length];
+            input.readFully(payload);
+            int checksum = input.readInt();
+
+            crc.reset();
+            crc.update(op);
+            for (int i = 56; i >= 0; i -= 8) crc.update((int) (id >>> i));
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) break;
+
+            int recordSize = RECORD_OVERHEAD + length;
+            Record old;
+            if (op == OP_PUT) {
+                old = index.put(id, new Record(id, offset, recordSize));
+                payloads.put(id, payload);
+                liveBytes += recordSize;
+            } else if (op == OP_DELETE) {
+                old = index.remove(id);
+                payloads.remove(id);
+                deadBytes += recordSize;
+            } else break;
+            if (old != null) {
+                liveBytes -= old.size;
+                deadBytes += old.size;
+            }
+            nextId = Math.max(nextId, id + 1);
+            offset += recordSize;
+        }
+        return offset;
+    }
+
+    private void importFiles(File importFrom, Consumer<IAuthorizationKey> consumer) throws IOException {
+        File[] files = importFrom == null ? null : KeyStorage.listKeyFiles(importFrom);
+        if (files == null) return;
+        for (File keyFile : files) {
+            IAuthorizationKey key;
+            try {
+                key = KeyStorage.readKey(keyFile, false);
+            } catch (Exception e) {
+                new RuntimeException("Exception in importing key: " + keyFile, e).printStackTrace();
+                continue;
+            }
+            put(key);
+            consumer.accept(key);
+        }
+        sync();
+    }
+
+    private static ByteBuffer encodeRecord(byte op, long id, byte[] payload) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_OVERHEAD + payload.length)
+                .putInt(payload.length)
+                .put(op)
+                .putLong(id)
+                .put(payload);
+        crc.update(buffer.array(), 4, 1 + 8 + payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private Record append(byte op, long id, byte[] payload) throws IOException {
+        ByteBuffer buffer = encodeRecord(op, id, payload);
+        long offset = channel.size();
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return new Record(id, offset, buffer.limit());
+    }
+
+    public void put(IAuthorizationKey key) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        KeyStorage.encodeKey(key, payload, false);
+        put(key, payload.toByteArray());
+    }
+
+    /**
+     * Store {@code key} with an already encoded payload
+     */
+    public synchronized void put(IAuthorizationKey key, byte[] payload) throws IOException {
+        Long id = ids.get(key);
+        if (id == null) {
+            ids.put(key, id = nextId++);
+        }
+        Record record = append(OP_PUT, id, payload);
+        Record old = index.put(id, record);
+        liveBytes += record.size;
+        if (old != null) {
+            liveBytes -= old.size;
+            deadBytes += old.size;
+        }
+        compactIfNeeded();
+    }
+
+    public synchronized void delete(IAuthorizationKey key) throws IOException {
+        Long id = ids.remove(key);
+        if (id == null) return;
+        Record record = append(OP_DELETE, id, new byte[0]);
+        deadBytes += record.size;
+        Record old = index.remove(id);
+        if (old != null) {
+            liveBytes -= old.size;
+            deadBytes += old.size;
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Flush appended records to disk
+     */
+    public synchronized void sync() throws IOException {
+        if (channel != null) channel.force(false);
+    }
+
+    public Collection<IAuthorizationKey> keys() {
+        return new ArrayList<>(ids.keySet());
+    }
+
+    private void compactIfNeeded() {
+        if (compacting || deadBytes < COMPACT_THRESHOLD || deadBytes < liveBytes) return;
+        compacting = true;
+        COMPACTOR.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                new RuntimeException("Exception in compacting " + file, e).printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Rewrite the log with live records only, then atomically replace it
+     */
+    public void compact() throws IOException {
+        compact(() -> {
+        });
+    }
+
+    /**
+     * @param copied runs after the unlocked copy, before the changes made meanwhile are applied
+     */
+    void compact(Runnable copied) throws IOException {
+        FileChannel source;
+        List<Record> records;
+        synchronized (this) {
+            source = channel;
+            records = new ArrayList<>(index.values());
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            if (source == null) return;
+            records.sort(Comparator.comparingLong(it -> it.offset));
+
+            Map<Record, Long> offsets = new IdentityHashMap<>();
+            FileChannel output = FileChannel.open(temp,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+            );
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                output.write(header);
+                // Records are never modified once appended, so they are copied without the lock
+                for (Record record : records) {
+                    transfer(source, record, output, offsets);
+                }
+                copied.run();
+
+                synchronized (this) {
+                    if (channel != source) return; // Closed or rewritten meanwhile
+                    // Keys deleted meanwhile still have their copied put, bury it again
+                    for (Record record : records) {
+                        if (index.containsKey(record.id)) continue;
+                        ByteBuffer tombstone = encodeRecord(OP_DELETE, record.id, new byte[0]);
+                        while (tombstone.hasRemaining()) {
+                            output.write(tombstone);
+                        }
+                    }
+                    // Put meanwhile, appended after the copies and tombstones so that they win
+                    for (Record record : index.values()) {
+                        if (!offsets.containsKey(record)) transfer(source, record, output, offsets);
+                    }
+                    output.force(true);
+                    long size = output.size();
+                    output.close();
+                    replace(temp);
+
+                    liveBytes = 0;
+                    for (Record record : index.values()) {
+                        record.offset = offsets.get(record);
+                        liveBytes += record.size;
+                    }
+                    deadBytes = size - HEADER_SIZE - liveBytes;
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void transfer(
+            FileChannel source, Record record, FileChannel output, Map<Record, Long> offsets
+    ) throws IOException {
+        offsets.put(record, output.position());
+        long transferred = 0;
+        while (transferred < record.size) {
+            transferred += source.transferTo(record.offset + transferred, record.size - transferred, output);
+        }
+    }
+
+    /**
+     * Atomically replace the log with {@code temp}.
+     * The channel is always reopened, on the new log if moved, otherwise on the old one.
+     */
+    // Must hold `this`
+    private void replace(Path temp) throws IOException {
+        channel.close();
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            KeyWriteQueue.syncDirectory(file.getParent());
+        } finally {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+
+    public interface PayloadTransform {
+        byte[] transform(byte[] payload) throws Exception;
+    }
+
+    /**
+     * Rewrite every live record through {@code transform}, e.g. re-encrypt with a new password.
+     * Payloads are transformed in parallel on {@code executor}, then the log is atomically replaced.
+     * If any payload fails, the log is left untouched.
+     *
+     * @param progress receives the count of transformed records and the total
+     */
+    public synchronized void rewrite(
+            PayloadTransform transform, ExecutorService executor, BiConsumer<Integer, Integer> progress
+    ) throws IOException {
+        if (channel == null) throw new IOException("Vault closed: " + file);
+        List<Record> records = new ArrayList<>(index.values());
+        records.sort(Comparator.comparingLong(it -> it.offset));
+        int total = records.size();
+
+        List<Future<byte[]>> results = new ArrayList<>(total);
+        AtomicInteger completed = new AtomicInteger();
+        for (Record record : records) {
+            ByteBuffer buffer = ByteBuffer.allocate(record.size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, record.offset + buffer.position()) < 0) {
+                    throw new EOFException("Record #" + record.id + " out of " + file);
+                }
+            }
+            byte[] payload = Arrays.copyOfRange(buffer.array(), 4 + 1 + 8, record.size - 4);
+            results.add(executor.submit(() -> {
+                byte[] result = transform.transform(payload);
+                progress.accept(completed.incrementAndGet(), total);
+                return result;
+            }));
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".rewrite");
+        List<Record> rewritten = new ArrayList<>(total);
+        try (FileChannel output = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+        )) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            output.write(header);
+            for (int i = 0; i < total; i++) {
+                byte[] payload;
+                try {
+                    payload = results.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                } catch (ExecutionException e) {
+                    throw new IOException("Exception in rewriting key #" + records.get(i).id, e.getCause());
+                }
+                ByteBuffer buffer = encodeRecord(OP_PUT, records.get(i).id, payload);
+                rewritten.add(new Record(records.get(i).id, output.position(), buffer.limit()));
+                while (buffer.hasRemaining()) output.write(buffer);
+            }
+            output.force(true);
+        } catch (IOException | RuntimeException e) {
+            for (Future<byte[]> result : results) result.cancel(true);
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        try {
+            replace(temp);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        index.clear();
+        liveBytes = 0;
+        for (Record record : rewritten) {
+            index.put(record.id, record);
+            liveBytes += record.size;
+        }
+        deadBytes = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -37,8 +37,9 @@ import net.miginfocom.swing.MigLayout;
 import javax.accessibility.AccessibleContext;
 import javax.imageio.ImageIO;
 import javax.swing.*;
-import javax.swing.border.Border;
 import javax.swing.border.TitledBorder;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 import javax.swing.text.JTextComponent;
 import java.awt.*;
 import java.awt.datatransfer.Clipboard;
@@ -48,6 +49,7 @@ import java.awt.datatransfer.Transferable;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.lang.ref.SoftReference;
 import java.lang.management.ManagementFactory;
 import java.lang.management.RuntimeMXBean;
 import java.net.URI;
@@ -59,6 +61,7 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class MainDisplay {
     static {
@@ -76,9 +79,18 @@ public class MainDisplay {
     };
 
     public static final JPanel STATUS_BAR = new JPanel();
-    public static final JPanel MAIN_CONTENT = new JPanel();
     public static final JLabel BOTTOM_MSG_BAR = new JLabel("Authenticator " + VerInfo.version);
-    public static final ConcurrentLinkedDeque<RenderedLabel> KEYS = new ConcurrentLinkedDeque<>();
+    public static final JProgressBar LOADING_BAR = new JProgressBar();
+    public static final KeyListModel KEYS = new KeyListModel();
+    public static final KeyCellRenderer KEY_RENDERER = new KeyCellRenderer();
+    static final DetailsEditor DETAILS_EDITOR = new DetailsEditor();
+    public static final PeriodHeader PERIOD_HEADER = new PeriodHeader();
+    public static final JList<RenderedLabel> KEY_LIST = new JList<RenderedLabel>(KEYS) {
+        @Override
+        public boolean getScrollableTracksViewportWidth() {
+            return true;
+        }
+    };
     public static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newScheduledThreadPool(5, new ThreadFactory() {
         private final AtomicInteger counter = new AtomicInteger(0);
 
@@ -89,48 +101,43 @@ public class MainDisplay {
             return t;
         }
     });
+    static final CodeScheduler CODE_SCHEDULER = new CodeScheduler(SCHEDULED_EXECUTOR_SERVICE);
+    static final javax.swing.Timer ANIMATION_TIMER = new javax.swing.Timer(100, e -> animate());
     public static final UnitValue UNIT_VALUE_ZERO = new UnitValue(0);
-    public static final MouseListener COPY_ON_CLICK_LISTENER = new MouseAdapter() {
-        //region
-        @Override
-        public void mouseClicked(MouseEvent e) {
-            if (e.getButton() != MouseEvent.BUTTON1) return;
-            Component component = e.getComponent();
-            if (component instanceof Label) {
-                copyText(((Label) component).getText());
-            }
-            if (component instanceof JLabel) {
-                copyText(((JLabel) component).getText());
-            }
-        }
-        //endregion
-    };
-
+    /**
+     * Client property of labels that copy their text when clicked in {@link #KEY_LIST}
+     */
+    public static final String COPYABLE = "authorization.copyable";
+    private static boolean visibleRowsUpdating;
+
+    /**
+     * Mouse handler of {@link #KEY_LIST}, dispatches clicks to the rendered part of the row
+     */
     public static class KeyDetailsSwitcher extends MouseAdapter {
-        public RenderedLabel declaredLabel;
-
         @Override
         public void mouseClicked(MouseEvent e) {
+            int index = KEY_LIST.locationToIndex(e.getPoint());
+            if (index == -1) return;
+            Rectangle bounds = KEY_LIST.getCellBounds(index, index);
+            if (bounds == null || !bounds.contains(e.getPoint())) return;
+            RenderedLabel declaredLabel = KEYS.getElementAt(index);
+
             if (e.getButton() == MouseEvent.BUTTON1) {
-                Component component = e.getComponent();
-                if (component == declaredLabel
-                        || component == declaredLabel.declaredPanel
-                        || component == declaredLabel.counter
-                ) handle();
+                Component component = KEY_RENDERER.componentAt(KEY_LIST, index, bounds, e.getPoint());
+                if (component instanceof JLabel && ((JLabel) component).getClientProperty(COPYABLE) != null) {
+                    copyText(((JLabel) component).getText());
+                } else if (component == KEY_RENDERER || component == KEY_RENDERER.serviceLabel) {
+                    declaredLabel.setDetailsVisitable(!declaredLabel.isDetailsVisitable());
+                }
             }
             if (e.getButton() == MouseEvent.BUTTON3) {
                 declaredLabel.onRightClick(e);
             }
         }
-
-        private void handle() {
-            declaredLabel.setDetailsVisitable(!declaredLabel.isDetailsVisitable());
-            MAIN_FRAME.validate();
-            MAIN_FRAME.repaint();
-        }
     }
 
-    public static final AuthManager AUTH_MANAGER = AuthManager.newInstance();
+    // No action advances HOTP counters here, so otpauth://hotp keys are rejected instead of shown stuck
+    public static final AuthManager AUTH_MANAGER = AuthManager.newInstance(false);
 
     public static class BottomMsgUpdater {
         public static String BOTTOM_MSG = "Authorization";
@@ -193,33 +200,370 @@ public class MainDisplay {
     }
 
 
-    public static class RenderedLabel extends JLabel {
-        public JPanel declaredPanel;
-        public IAuthorizationKey declaredKey;
-        public SvdProgressBar counter = new SvdProgressBar();
-        public long startTime, nextTime;
-        public JLabel codeLabel;
-        public JPanel details;
-        public JLabel codePlaceholder;
+    /**
+     * Keys displayed in {@link #KEY_LIST}. Must be accessed from the event dispatch thread
+     */
+    public static class KeyListModel extends AbstractListModel<RenderedLabel> implements Iterable<RenderedLabel> {
+        private final List<RenderedLabel> keys = new ArrayList<>();
 
-        public RenderedLabel(String text) {
-            super(text);
-            counter.setMaximum(1000);
-            counter.setMinimum(0);
+        @Override
+        public int getSize() {
+            return keys.size();
+        }
+
+        @Override
+        public RenderedLabel getElementAt(int index) {
+            return keys.get(index);
+        }
+
+        @Override
+        public Iterator<RenderedLabel> iterator() {
+            return Collections.unmodifiableList(keys).iterator();
+        }
+
+        public void add(RenderedLabel label) {
+            label.index = keys.size();
+            keys.add(label);
+            fireIntervalAdded(this, keys.size() - 1, keys.size() - 1);
+        }
+
+        /**
+         * Remove the matched keys, their pending code refreshes are dropped
+         */
+        public void removeIf(Predicate<RenderedLabel> filter) {
+            int lowest = -1;
+            for (int i = keys.size() - 1; i >= 0; i--) {
+                RenderedLabel label = keys.get(i);
+                if (filter.test(label)) {
+                    label.removed = true;
+                    CODE_SCHEDULER.remove(label);
+                    PERIOD_HEADER.remove(label);
+                    keys.remove(i);
+                    fireIntervalRemoved(this, i, i);
+                    lowest = i;
+                }
+            }
+            if (lowest != -1) {
+                for (int i = lowest; i < keys.size(); i++) keys.get(i).index = i;
+            }
+        }
+
+        public void clear() {
+            if (keys.isEmpty()) return;
+            int last = keys.size() - 1;
+            for (RenderedLabel label : keys) {
+                label.removed = true;
+                CODE_SCHEDULER.remove(label);
+            }
+            PERIOD_HEADER.clear();
+            keys.clear();
+            fireIntervalRemoved(this, 0, last);
+        }
+
+        /**
+         * Notify the list that the display of {@code label} changed
+         */
+        public void changed(RenderedLabel label) {
+            int index = label.index;
+            if (index >= 0 && index < keys.size() && keys.get(index) == label) {
+                fireContentsChanged(this, index, index);
+            }
+        }
+    }
+
+    /**
+     * One countdown per code period above {@link #KEY_LIST}, shared by all rows of that period.
+     * Must be accessed from the event dispatch thread
+     */
+    public static class PeriodHeader extends JPanel {
+        private static class Group {
+            int count;
+            long startTime;
+            final JLabel label = new JLabel();
+            final SvdProgressBar bar = new SvdProgressBar();
+        }
+
+        private final TreeMap<Long, Group> groups = new TreeMap<>();
+
+        public PeriodHeader() {
+            setLayout(new MigLayout("insets 2 5 2 5, fillx", "[][grow, fill]", ""));
+            setVisible(false);
+        }
+
+        /**
+         * Move {@code label} to the group of its current frame, {@code timed} is false if it has none
+         */
+        void update(RenderedLabel label, boolean timed) {
+            long range = label.nextTime - label.startTime;
+            long period = timed && range > 0 && label.nextTime != Long.MAX_VALUE ? range : 0;
+            if (period != label.period) {
+                leave(label);
+                label.period = period;
+                if (period != 0 && ++groups.computeIfAbsent(period, k -> new Group()).count == 1) rebuild();
+            }
+            if (period != 0) groups.get(period).startTime = label.startTime;
+        }
+
+        void remove(RenderedLabel label) {
+            leave(label);
+            label.period = 0;
+        }
+
+        void clear() {
+            if (groups.isEmpty()) return;
+            groups.clear();
+            rebuild();
+        }
+
+        private void leave(RenderedLabel label) {
+            if (label.period == 0) return;
+            Group group = groups.get(label.period);
+            if (group != null && --group.count == 0) {
+                groups.remove(label.period);
+                rebuild();
+            }
+        }
+
+        private void rebuild() {
+            removeAll();
+            int row = 0;
+            for (Map.Entry<Long, Group> entry : groups.entrySet()) {
+                long period = entry.getKey();
+                Group group = entry.getValue();
+                group.label.setText(period % 1000 == 0 ? period / 1000 + "s" : period + "ms");
+                group.bar.setMinimum(0);
+                group.bar.setMaximum(1000);
+                group.bar.setStringPainted(true);
+                add(group.label, "cell 0 " + row);
+                add(group.bar, "cell 1 " + row);
+                row++;
+            }
+            setVisible(!groups.isEmpty());
+            revalidate();
+            repaint();
+        }
+
+        void tick(long now) {
+            for (Map.Entry<Long, Group> entry : groups.entrySet()) {
+                long period = entry.getKey();
+                Group group = entry.getValue();
+                // Frames of a period follow each other, so the countdown continues past the last refresh
+                long left = period - Math.floorMod(now - group.startTime, period);
+                group.bar.setValue(left * 1000 / period);
+                group.bar.setString((left + 999) / 1000 + "s");
+            }
+        }
+    }
+
+    /**
+     * Keeps the details of the selected row as a live component over {@link #KEY_LIST}, so that
+     * they react to the mouse. Other expanded rows only show a painted copy of their details.
+     * Must be accessed from the event dispatch thread
+     */
+    static class DetailsEditor {
+        /**
+         * Reserves the space of the live details in the rendered row
+         */
+        final JComponent placeholder = new JComponent() {
+        };
+        private RenderedLabel label;
+        private JPanel details;
+        private boolean updating;
+
+        boolean isEditing(RenderedLabel value) {
+            return value == label && details != null;
+        }
+
+        /**
+         * Follow the selection, rows and size of the list once it has settled
+         */
+        void update() {
+            if (updating) return;
+            updating = true;
+            SwingUtilities.invokeLater(() -> {
+                updating = false;
+                install();
+            });
+        }
+
+        private void install() {
+            int index = KEY_LIST.getSelectedIndex();
+            RenderedLabel selected = index == -1 || index >= KEYS.getSize() ? null : KEYS.getElementAt(index);
+            if (selected != null && !selected.isDetailsVisitable()) selected = null;
+            JPanel panel = selected == null ? null : selected.getDetails();
+            if (panel != details) {
+                if (details != null) KEY_LIST.remove(details);
+                if (panel != null) KEY_LIST.add(panel);
+                details = panel;
+            }
+            label = selected;
+            if (panel != null) {
+                placeholder.setPreferredSize(panel.getPreferredSize());
+                panel.setBounds(KEY_RENDERER.detailsBounds(KEY_LIST, index));
+                panel.validate();
+            }
+            KEY_LIST.repaint();
+        }
+    }
+
+    /**
+     * Paints the rows of {@link #KEY_LIST}. Only visible rows are rendered, all sharing this component.
+     */
+    public static class KeyCellRenderer extends JPanel implements ListCellRenderer<RenderedLabel> {
+        private final TitledBorder border = new TitledBorder("");
+        final JLabel codeLabel = new JLabel();
+        final JLabel serviceLabel = new JLabel();
+        private Component shownDetails;
+        private Dimension collapsedSize;
+
+        public KeyCellRenderer() {
+            setLayout(new MigLayout("", "[fill][grow][button]", ""));
+            setBorder(border);
+            add(codeLabel, "cell 0 0");
+            add(serviceLabel, "cell 2 0, al right");
+            codeLabel.putClientProperty(COPYABLE, Boolean.TRUE);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(
+                JList<? extends RenderedLabel> list,
+                RenderedLabel value,
+                int index,
+                boolean isSelected,
+                boolean cellHasFocus
+        ) {
+            IAuthorizationKey key = value.declaredKey;
+            String serviceName = key.getService().getName();
+            border.setTitle(String.valueOf(key.getKeyName()));
+            serviceLabel.setText(serviceName);
+            codeLabel.setText(value.code == null ? serviceName : value.code);
+
+            Component details = null;
+            if (value.detailsVisitable) {
+                details = DETAILS_EDITOR.isEditing(value) ? DETAILS_EDITOR.placeholder : value.getDetails();
+            }
+            if (shownDetails != details) {
+                if (shownDetails != null) remove(shownDetails);
+                if (details != null) add(details, "cell 0 1 3 1, growx");
+                shownDetails = details;
+            }
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            return this;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            // Collapsed rows all have the same size, skip the layout while the list measures every row
+            if (shownDetails != null) return super.getPreferredSize();
+            if (collapsedSize == null) {
+                collapsedSize = super.getPreferredSize();
+            }
+            return collapsedSize;
+        }
+
+        @Override
+        public void updateUI() {
+            super.updateUI();
+            collapsedSize = null;
+        }
+
+        /**
+         * Find the rendered component of row {@code index} at {@code point} of {@code list}
+         */
+        Component componentAt(JList<RenderedLabel> list, int index, Rectangle bounds, Point point) {
+            getListCellRendererComponent(list, list.getModel().getElementAt(index), index, false, false);
+            setBounds(0, 0, bounds.width, bounds.height);
+            layoutTree(this);
+            return SwingUtilities.getDeepestComponentAt(this, point.x - bounds.x, point.y - bounds.y);
+        }
+
+        /**
+         * Where the details of row {@code index} are rendered, in {@code list} coordinates
+         */
+        Rectangle detailsBounds(JList<RenderedLabel> list, int index) {
+            Rectangle bounds = list.getCellBounds(index, index);
+            getListCellRendererComponent(list, list.getModel().getElementAt(index), index, false, false);
+            setBounds(0, 0, bounds.width, bounds.height);
+            layoutTree(this);
+            Rectangle details = SwingUtilities.convertRectangle(
+                    shownDetails.getParent(), shownDetails.getBounds(), this
+            );
+            details.translate(bounds.x, bounds.y);
+            return details;
+        }
+
+        private static void layoutTree(Container container) {
+            container.doLayout();
+            for (Component component : container.getComponents()) {
+                if (component instanceof Container) {
+                    layoutTree((Container) component);
+                }
+            }
+        }
+    }
+
+    /**
+     * Display state of a key in {@link #KEYS}
+     */
+    public static class RenderedLabel {
+        public final IAuthorizationKey declaredKey;
+        public long startTime, nextTime;
+        /**
+         * Position in {@link #KEYS}, maintained by {@link KeyListModel}
+         */
+        int index = -1;
+        /**
+         * Group of {@link #PERIOD_HEADER}, 0 if none
+         */
+        long period;
+        /**
+         * Set once the key is no longer displayed, pending refreshes skip it
+         */
+        public volatile boolean removed;
+        /**
+         * The current code, {@code null} before the first refresh
+         */
+        public String code;
+        /**
+         * Built on first expansion, dropped on collapse or when memory runs low
+         */
+        private SoftReference<JPanel> details;
+        private boolean detailsVisitable;
+
+        public RenderedLabel(IAuthorizationKey declaredKey) {
+            this.declaredKey = declaredKey;
         }
 
         public boolean isDetailsVisitable() {
-            return details.getParent() != null;
+            return detailsVisitable;
         }
 
         public void setDetailsVisitable(boolean visitable) {
-            boolean isV = isDetailsVisitable();
-            if (isV == visitable) return;
-            if (visitable) {
-                declaredPanel.add(details, "cell 0 2 3 1, growx");
-            } else {
-                declaredPanel.remove(details);
+            if (detailsVisitable == visitable) return;
+            detailsVisitable = visitable;
+            if (!visitable) details = null;
+            KEYS.changed(this);
+        }
+
+        /**
+         * Get the details panel, build it if not yet built or already released
+         */
+        public JPanel getDetails() {
+            SoftReference<JPanel> ref = details;
+            JPanel panel = ref == null ? null : ref.get();
+            if (panel == null) {
+                panel = buildDetails(declaredKey);
+                details = new SoftReference<>(panel);
             }
+            return panel;
+        }
+
+        /**
+         * Drop the details panel, it is rebuilt from the key on next display
+         */
+        public void invalidateDetails() {
+            details = null;
+            KEYS.changed(this);
         }
 
         public void onRightClick(MouseEvent event) {
@@ -241,12 +585,8 @@ public class MainDisplay {
                         if (newName != null) {
                             if (declaredKey.rename(newName.toString())) {
                                 BottomMsgUpdater.nextDisplayMsg = "Rename successful";
-                                Border border = declaredPanel.getBorder();
-                                if (border instanceof TitledBorder) {
-                                    ((TitledBorder) border).setTitle(declaredKey.getKeyName());
-                                    declaredPanel.validate();
-                                    declaredPanel.repaint();
-                                }
+                                ZXing.invalidate(declaredKey.getIdentity());
+                                invalidateDetails();
                                 KeyStorage.saveKey(declaredKey); // override
                             } else {
                                 BottomMsgUpdater.nextDisplayMsg = "Rename failed";
@@ -258,13 +598,9 @@ public class MainDisplay {
             );
             popupMenu.add(new JMenuItem("Delete")
                     .handle(() -> {
+                        ZXing.invalidate(declaredKey.getIdentity());
                         KeyStorage.deleteKey(declaredKey);
-                        JPanel declaredPanel = this.declaredPanel;
-                        if (declaredPanel.getParent() != null) {
-                            declaredPanel.getParent().remove(declaredPanel);
-                            MAIN_FRAME.validate();
-                            MAIN_FRAME.repaint();
-                        }
+                        removeKey(declaredKey);
                     })
             );
             popupMenu.addSeparator();
@@ -272,15 +608,11 @@ public class MainDisplay {
             popupMenu.add(new JMenuItem("Hidden details")
                     .handle(() -> {
                         setDetailsVisitable(false);
-                        MAIN_FRAME.validate();
-                        MAIN_FRAME.repaint();
                     })
             );
             popupMenu.add(new JMenuItem("Show details")
                     .handle(() -> {
                         setDetailsVisitable(true);
-                        MAIN_FRAME.validate();
-                        MAIN_FRAME.repaint();
                     })
             );
             popupMenu.addSeparator();
@@ -318,13 +650,43 @@ public class MainDisplay {
             STATUS_BAR.setLayout(layout);
             STATUS_BAR.add(new JSeparator(), "cell 0 0 5 1");
             STATUS_BAR.add(BOTTOM_MSG_BAR, "cell 0 1 0 0");
+            STATUS_BAR.add(LOADING_BAR, "cell 4 1, al right");
+            LOADING_BAR.setStringPainted(true);
+            LOADING_BAR.setVisible(false);
             // STATUS_BAR.setBackground(Color.RED);
             // BOTTOM_MSG_BAR.setBackground(Color.BLACK);
         }
         {
-            JScrollPane pane = new JScrollPane(MAIN_CONTENT);
+            KEY_LIST.setCellRenderer(KEY_RENDERER);
+            KEY_LIST.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+            KEY_LIST.addMouseListener(new KeyDetailsSwitcher());
+            JScrollPane pane = new JScrollPane(KEY_LIST);
             pane.getVerticalScrollBar().setUnitIncrement(16);
-            MAIN_CONTENT.setLayout(new MigLayout("fillx"));
+            pane.setColumnHeaderView(PERIOD_HEADER);
+            pane.getViewport().addChangeListener(e -> {
+                updateVisibleRows();
+                DETAILS_EDITOR.update();
+            });
+            KEY_LIST.addListSelectionListener(e -> DETAILS_EDITOR.update());
+            KEYS.addListDataListener(new ListDataListener() {
+                @Override
+                public void intervalAdded(ListDataEvent e) {
+                    updateVisibleRows();
+                    DETAILS_EDITOR.update();
+                }
+
+                @Override
+                public void intervalRemoved(ListDataEvent e) {
+                    updateVisibleRows();
+                    DETAILS_EDITOR.update();
+                }
+
+                @Override
+                public void contentsChanged(ListDataEvent e) {
+                    updateVisibleRows();
+                    DETAILS_EDITOR.update();
+                }
+            });
             MAIN_FRAME.add(pane, BorderLayout.CENTER);
         }
         MAIN_FRAME.add(STATUS_BAR, BorderLayout.SOUTH);
@@ -616,8 +978,6 @@ public class MainDisplay {
                         .handle(() -> {
                             for (RenderedLabel key : KEYS)
                                 key.setDetailsVisitable(true);
-                            MAIN_FRAME.validate();
-                            MAIN_FRAME.repaint();
                         })
                 );
                 view.add(new JMenuItem("Collapse all")
@@ -629,8 +989,6 @@ public class MainDisplay {
                         .handle(() -> {
                             for (RenderedLabel key : KEYS)
                                 key.setDetailsVisitable(false);
-                            MAIN_FRAME.validate();
-                            MAIN_FRAME.repaint();
                         })
                 );
 
@@ -642,18 +1000,7 @@ public class MainDisplay {
                 JMenu password = new JMenu("Password");
 
                 password.add(new JMenuItem("Change password")
-                        .handle(() -> {
-                            changePassword();
-                            Configuration.save();
-                            KeyStorage.KEYS.keySet().forEach(KeyStorage::saveKey);
-                        })
-                );
-                password.add(new JMenuItem("Change password and reload")
-                        .handle(() -> {
-                            changePassword();
-                            Configuration.save();
-                            KeyStorage.reloadKeys();
-                        })
+                        .handle(MainDisplay::changePassword)
                 );
 
                 settings.add(password);
@@ -682,108 +1029,179 @@ public class MainDisplay {
 
     public static void displayKey(IAuthorizationKey key) {
         if (key == null) return;
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> displayKey(key));
+            return;
+        }
 
-        KeyDetailsSwitcher keyDetailsSwitcher = new KeyDetailsSwitcher();
-
-        JPanel panel = new JPanel();
-        panel.setLayout(new MigLayout("", "[fill][grow][button]", ""));
-        panel.setBorder(new TitledBorder(String.valueOf(key.getKeyName())));
-        RenderedLabel rl = new RenderedLabel("");
-        keyDetailsSwitcher.declaredLabel = rl;
-
-        panel.add(rl.codeLabel = new JLabel(key.getService().getName()), "cell 0 0");
-        panel.add(rl.codePlaceholder = new JLabel(""), "cell 1 0");
-        panel.add(rl, "cell 2 0, al right");
-        rl.setText(key.getService().getName());
-        rl.declaredPanel = panel;
-        rl.declaredKey = key;
-        panel.add(rl.counter, "cell 0 1 3 1");
-        // rl.counter.setIndeterminate(true);
-
-        MAIN_CONTENT.add(panel, "wrap, growx");
+        RenderedLabel rl = new RenderedLabel(key);
         KEYS.add(rl);
-        rl.codeLabel.addMouseListener(COPY_ON_CLICK_LISTENER);
-        panel.addMouseListener(keyDetailsSwitcher);
-        for (Component subC : panel.getComponents()) {
-            subC.addMouseListener(keyDetailsSwitcher);
-        }
+        CODE_SCHEDULER.add(rl);
+    }
 
+    private static JPanel buildDetails(IAuthorizationKey key) {
         JPanel details = new JPanel();
         details.setLayout(new MigLayout());
-        rl.details = details;
 
-        {
-            Map<String, String> detailsInfo = key.getDetailsInfo();
-            if (detailsInfo == null || detailsInfo.isEmpty()) {
-                details.add(new JLabel("No details"));
-            } else {
-                int counter = 0;
-                for (Map.Entry<String, String> entry : detailsInfo.entrySet()) {
-                    putDetails(details, entry.getKey(), entry.getValue(), counter);
-                    counter++;
-                }
-                try {
-                    String uri = key.serializeToUri();
-                    if (uri != null) {
-                        putDetails(details, "uri", uri, counter);
-                        details.add(new JLabel(new ImageIcon(
-                                ZXing.renderQRCode(uri, 200, 200)
-                        )), "cell 1 " + (counter + 1));
-                    }
-                } catch (UnsupportedOperationException ignored) {
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+        Map<String, String> detailsInfo = key.getDetailsInfo();
+        if (detailsInfo == null || detailsInfo.isEmpty()) {
+            details.add(new JLabel("No details"));
+        } else {
+            int counter = 0;
+            for (Map.Entry<String, String> entry : detailsInfo.entrySet()) {
+                putDetails(details, entry.getKey(), entry.getValue(), counter);
+                counter++;
+            }
+            String uri = uriOf(key);
+            if (uri != null) {
+                putDetails(details, "uri", uri, counter);
+                details.add(new QRCodeView(key.getIdentity(), uri, 200), "cell 1 " + (counter + 1));
+            }
+        }
+        return details;
+    }
+
+    /**
+     * @return {@code null} if {@code key} cannot be exported as uri
+     */
+    private static String uriOf(IAuthorizationKey key) {
+        try {
+            return key.serializeToUri();
+        } catch (UnsupportedOperationException ignored) {
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Tell {@link #CODE_SCHEDULER} which rows are on screen, once the list has settled
+     */
+    private static void updateVisibleRows() {
+        if (visibleRowsUpdating) return;
+        visibleRowsUpdating = true;
+        SwingUtilities.invokeLater(() -> {
+            visibleRowsUpdating = false;
+            int first = KEY_LIST.getFirstVisibleIndex();
+            int last = KEY_LIST.getLastVisibleIndex();
+            List<RenderedLabel> rows = new ArrayList<>();
+            if (first != -1) {
+                for (int i = first; i <= last; i++) rows.add(KEYS.getElementAt(i));
             }
+            CODE_SCHEDULER.setVisible(rows);
+        });
+    }
+
+    /**
+     * Remove {@code key} from the key list, the reverse of {@link #displayKey(IAuthorizationKey)}
+     */
+    public static void removeKey(IAuthorizationKey key) {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(() -> removeKey(key));
+            return;
         }
+        KEYS.removeIf(it -> it.declaredKey == key);
+    }
 
-        for (Component subC : details.getComponents()) {
-            subC.addMouseListener(keyDetailsSwitcher);
+    /**
+     * Update the progress indicator of status bar, hidden once done.
+     * Must be called from the event dispatch thread
+     */
+    static void showProgress(String action, int done, int total) {
+        if (done >= total) {
+            LOADING_BAR.setVisible(false);
+            return;
         }
+        LOADING_BAR.setMaximum(total);
+        LOADING_BAR.setValue(done);
+        LOADING_BAR.setString(action + " " + done + "/" + total);
+        LOADING_BAR.setVisible(true);
     }
 
     private static void putDetails(Container container, String key, String value, int counter) {
         container.add(new JLabel(key), "cell 0 " + counter);
         JLabel label = new JLabel(value);
         container.add(label, "cell 1 " + counter);
-        label.addMouseListener(COPY_ON_CLICK_LISTENER);
+        label.putClientProperty(COPYABLE, Boolean.TRUE);
+        // Used when the details are live, painted copies are handled by KeyDetailsSwitcher
+        label.setCursor(Cursor.getPredefinedCursor(Cursor.HAND_CURSOR));
+        label.setToolTipText("Click to copy");
+        label.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getButton() == MouseEvent.BUTTON1) copyText(label.getText());
+            }
+        });
     }
 
+    /**
+     * Start the status bar and countdown animation. Codes are refreshed by {@link #CODE_SCHEDULER}
+     */
     private static void startScheduler() {
-        SCHEDULED_EXECUTOR_SERVICE.scheduleAtFixedRate(() -> {
-            long now = System.currentTimeMillis();
-            {
-                String display = BottomMsgUpdater.nextDisplayMsg;
-                if (display != null) {
-                    BottomMsgUpdater.nextDisplayMsg = null;
-                    BOTTOM_MSG_BAR.setText(display);
-                    BottomMsgUpdater.invalidateTime = now + TimeUnit.SECONDS.toMillis(5);
-                } else {
-                    long invalidateTime = BottomMsgUpdater.invalidateTime;
-                    if (invalidateTime != 0 && now > invalidateTime) {
-                        BottomMsgUpdater.invalidateTime = 0;
-                        BOTTOM_MSG_BAR.setText(BottomMsgUpdater.BOTTOM_MSG);
-                    }
-                }
+        WindowAdapter activityListener = new WindowAdapter() {
+            @Override
+            public void windowStateChanged(WindowEvent e) {
+                updateActivity();
             }
-            for (RenderedLabel key : KEYS) {
-                if (now > key.nextTime) {
-                    String n = key.declaredKey.calcValidKey();
-                    key.startTime = now;
-                    key.nextTime = now + TimeUnit.SECONDS.toMillis(10);
-                    if (n == null) {
-                        key.codeLabel.setText("<Calc valid key failed>");
-                    } else {
-                        key.nextTime = Math.max(key.nextTime, key.declaredKey.keyNextInvalidatedTime());
-                        key.codeLabel.setText(n);
-                    }
-                } else {
-                    key.counter.setValue(
-                            ((key.nextTime - now) * 1000 / (key.nextTime - key.startTime))
-                    );
+
+            @Override
+            public void windowGainedFocus(WindowEvent e) {
+                updateActivity();
+            }
+
+            @Override
+            public void windowLostFocus(WindowEvent e) {
+                updateActivity();
+            }
+        };
+        MAIN_FRAME.addWindowStateListener(activityListener);
+        MAIN_FRAME.addWindowFocusListener(activityListener);
+        MAIN_FRAME.addHierarchyListener(e -> {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) updateActivity();
+        });
+        SwingUtilities.invokeLater(MainDisplay::updateActivity);
+    }
+
+    /**
+     * Follow the visibility of {@link #MAIN_FRAME}.
+     * <p>
+     * Nothing is calculated or animated while the window is minimized or hidden,
+     * the countdown slows down while the window is in background.
+     */
+    private static void updateActivity() {
+        boolean visible = MAIN_FRAME.isShowing()
+                && (MAIN_FRAME.getExtendedState() & Frame.ICONIFIED) == 0;
+        if (!visible) {
+            ANIMATION_TIMER.stop();
+            CODE_SCHEDULER.suspend();
+            return;
+        }
+        CODE_SCHEDULER.resume();
+        int delay = MAIN_FRAME.isFocused() ? 100 : 1000;
+        ANIMATION_TIMER.setDelay(delay);
+        if (!ANIMATION_TIMER.isRunning()) {
+            ANIMATION_TIMER.setInitialDelay(0);
+            ANIMATION_TIMER.start();
+        }
+    }
+
+    private static void animate() {
+        long now = AUTH_MANAGER.getClock().currentTimeMillis();
+        {
+            String display = BottomMsgUpdater.nextDisplayMsg;
+            if (display != null) {
+                BottomMsgUpdater.nextDisplayMsg = null;
+                BOTTOM_MSG_BAR.setText(display);
+                BottomMsgUpdater.invalidateTime = now + TimeUnit.SECONDS.toMillis(5);
+            } else {
+                long invalidateTime = BottomMsgUpdater.invalidateTime;
+                if (invalidateTime != 0 && now > invalidateTime) {
+                    BottomMsgUpdater.invalidateTime = 0;
+                    BOTTOM_MSG_BAR.setText(BottomMsgUpdater.BOTTOM_MSG);
                 }
             }
-        }, 0, 50, TimeUnit.MILLISECONDS);
+        }
+        PERIOD_HEADER.tick(now);
     }
 
     public static void copyText(String text) {
@@ -819,8 +1237,10 @@ public class MainDisplay {
     }
 
     public static void systemShutdown() {
+        ANIMATION_TIMER.stop();
         MAIN_FRAME.dispose();
         SCHEDULED_EXECUTOR_SERVICE.shutdown();
+        KeyStorage.shutdown();
         Platform.exit();
     }
 
@@ -976,7 +1396,7 @@ public class MainDisplay {
         }
     }
 
-    private static void changePassword() {
+    private static Future<?> changePassword() {
         JPasswordField pwd = new JPasswordField();
         JOptionPane.showMessageDialog(
                 MAIN_FRAME,
@@ -985,24 +1405,28 @@ public class MainDisplay {
                 JOptionPane.WARNING_MESSAGE
         );
         char[] pwd0 = pwd.getPassword();
+        byte[] newPasswd = null;
         if (pwd0.length == 0) {
             JOptionPane.showMessageDialog(MAIN_FRAME, "No password setup. Your keys will save with raw format.");
-            KeyStorage.passwd = null;
-            Configuration.INSTANCE.passwordProtected = false;
         } else {
-            Configuration.INSTANCE.passwordProtected = true;
             ByteBuffer bb = StandardCharsets.UTF_8.encode(
                     CharBuffer.wrap(pwd0)
             );
-            byte[] pwd1 = new byte[bb.remaining()];
-            bb.get(pwd1);
-            KeyStorage.passwd = pwd1;
+            newPasswd = new byte[bb.remaining()];
+            bb.get(newPasswd);
         }
+        return KeyStorage.changePassword(newPasswd);
     }
 
     private static void doFirstStartInit() {
         if (!Configuration.INSTANCE.firstUse) return;
-        changePassword();
+        try {
+            changePassword().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
 
         Configuration.INSTANCE.firstUse = false;
         Configuration.save();
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import com.google.zxing.common.BitMatrix;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.Path2D;
+
+/**
+ * Paints a QR code from the cached module matrix of {@link ZXing#qrMatrix(Object, String)}.
+ * <p>
+ * Modules are filled as shapes, so the code stays sharp at any size or display scale
+ * without holding an image.
+ */
+public class QRCodeView extends JComponent {
+    private final Object identity;
+    private final String content;
+    private Shape modules;
+    private Dimension matrixSize;
+
+    /**
+     * @param identity the identity of the key encoded in {@code content}
+     */
+    public QRCodeView(Object identity, String content, int size) {
+        this.identity = identity;
+        this.content = content;
+        setPreferredSize(new Dimension(size, size));
+        setOpaque(true);
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    /**
+     * Dark modules in module units, each row joined into runs
+     */
+    private Shape modules() {
+        Shape shape = modules;
+        if (shape != null) return shape;
+        BitMatrix matrix = ZXing.qrMatrix(identity, content);
+        Path2D.Float path = new Path2D.Float();
+        for (int y = 0, height = matrix.getHeight(); y < height; y++) {
+            int x = 0, width = matrix.getWidth();
+            while (x < width) {
+                if (!matrix.get(x, y)) {
+                    x++;
+                    continue;
+                }
+                int start = x;
+                while (x < width && matrix.get(x, y)) x++;
+                path.append(new Rectangle(start, y, x - start, 1), false);
+            }
+        }
+        matrixSize = new Dimension(matrix.getWidth(), matrix.getHeight());
+        return modules = path;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Shape shape = modules();
+        int width = getWidth(), height = getHeight();
+        double scale = Math.min((double) width / matrixSize.width, (double) height / matrixSize.height);
+
+        Graphics2D g2d = (Graphics2D) g.create();
+        try {
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, width, height);
+            g2d.translate((width - matrixSize.width * scale) / 2, (height - matrixSize.height * scale) / 2);
+            g2d.scale(scale, scale);
+            // Anti-aliasing would leave seams between adjacent modules
+            g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+            g2d.setColor(Color.BLACK);
+            g2d.fill(shape);
+        } finally {
+            g2d.dispose();
+        }
+    }
+}
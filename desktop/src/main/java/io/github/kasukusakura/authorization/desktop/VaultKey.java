@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.*;
+
+/**
+ * The AES key of the key vault, derived from the password by PBKDF2.
+ * <p>
+ * Derivation is slow by design, so derived keys are cached by password and salt:
+ * every file sharing the vault salt costs one derivation per session, and files
+ * written with another salt one derivation per salt. Each thread keeps its own {@link Cipher} instance.
+ */
+public class VaultKey {
+    static final int SALT_SIZE = 16;
+    private static final int ITERATIONS = 210_000;
+    private static final int KEY_SIZE = 256;
+    /**
+     * Enough for the vault salt of the old and the new password during re-encryption,
+     * and a few foreign salts
+     */
+    private static final int CACHE_SIZE = 8;
+    private static final ThreadLocal<Cipher> CIPHER = new ThreadLocal<>();
+    private static final Deque<VaultKey> CACHE = new ArrayDeque<>();
+
+    private final byte[] passwd;
+    final byte[] salt;
+    final SecretKey key;
+
+    private VaultKey(byte[] passwd, byte[] salt, SecretKey key) {
+        this.passwd = passwd;
+        this.salt = salt;
+        this.key = key;
+    }
+
+    private static VaultKey derive(byte[] passwd, byte[] salt) throws GeneralSecurityException {
+        CharBuffer chars = StandardCharsets.UTF_8.decode(ByteBuffer.wrap(passwd));
+        char[] password = new char[chars.remaining()];
+        chars.get(password);
+        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_SIZE);
+        try {
+            byte[] encoded = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256")
+                    .generateSecret(spec)
+                    .getEncoded();
+            return new VaultKey(passwd.clone(), salt.clone(), new SecretKeySpec(encoded, "AES"));
+        } finally {
+            spec.clearPassword();
+            Arrays.fill(password, '\0');
+        }
+    }
+
+    /**
+     * The key of {@code passwd} with the vault salt for writing, creating the salt if absent
+     */
+    public static VaultKey session(byte[] passwd) throws GeneralSecurityException {
+        byte[] salt;
+        synchronized (VaultKey.class) {
+            String vaultSalt = Configuration.INSTANCE.vaultSalt;
+            if (vaultSalt == null || vaultSalt.isEmpty()) {
+                salt = new byte[SALT_SIZE];
+                new SecureRandom().nextBytes(salt);
+                Configuration.INSTANCE.vaultSalt = Base64.getEncoder().encodeToString(salt);
+                Configuration.save();
+            } else {
+                salt = Base64.getDecoder().decode(vaultSalt);
+            }
+        }
+        return of(passwd, salt);
+    }
+
+    /**
+     * The key of {@code passwd} with the given salt, derived only if not cached
+     */
+    public static synchronized VaultKey of(byte[] passwd, byte[] salt) throws GeneralSecurityException {
+        for (Iterator<VaultKey> iterator = CACHE.iterator(); iterator.hasNext(); ) {
+            VaultKey cached = iterator.next();
+            if (Arrays.equals(cached.salt, salt) && MessageDigest.isEqual(cached.passwd, passwd)) {
+                iterator.remove();
+                CACHE.addFirst(cached);
+                return cached;
+            }
+        }
+        VaultKey key = derive(passwd, salt);
+        CACHE.addFirst(key);
+        while (CACHE.size() > CACHE_SIZE) {
+            Arrays.fill(CACHE.removeLast().passwd, (byte) 0);
+        }
+        return key;
+    }
+
+    /**
+     * Forget all derived keys, e.g. the password changed
+     */
+    public static synchronized void reset() {
+        for (VaultKey key : CACHE) {
+            Arrays.fill(key.passwd, (byte) 0);
+        }
+        CACHE.clear();
+    }
+
+    static Cipher cipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
+        Cipher cipher = CIPHER.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            CIPHER.set(cipher);
+        }
+        return cipher;
+    }
+}
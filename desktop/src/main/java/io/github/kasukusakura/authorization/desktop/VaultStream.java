@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Authenticated encrypted streams of the key vault.
+ * <p>
+ * Format: {@code [magic 4][salt 16][nonce prefix 7]} followed by chunks of
+ * {@code [int length | last flag][AES-GCM ciphertext]}.
+ * Every chunk uses nonce {@code prefix || index || last}, and the header as AAD,
+ * so reordered, truncated, extended or modified files are rejected.
+ * <p>
+ * Files without the magic are read as legacy {@link BFStream} files.
+ */
+public class VaultStream {
+    private static final byte[] MAGIC = {'K', 'S', 'V', 1};
+    private static final int PREFIX_SIZE = 7;
+    private static final int HEADER_SIZE = MAGIC.length + VaultKey.SALT_SIZE + PREFIX_SIZE;
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int TAG_SIZE = 16;
+    private static final int LAST_FLAG = 0x80000000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static InputStream dec(InputStream is, byte[] passwd) throws IOException, GeneralSecurityException {
+        if (passwd == null) return is;
+        PushbackInputStream pis = new PushbackInputStream(is, MAGIC.length);
+        byte[] magic = new byte[MAGIC.length];
+        int read = pis.readNBytes(magic, 0, magic.length);
+        if (read != MAGIC.length || !Arrays.equals(magic, MAGIC)) {
+            pis.unread(magic, 0, read);
+            return BFStream.dec(pis, passwd);
+        }
+        byte[] header = Arrays.copyOf(MAGIC, HEADER_SIZE);
+        if (pis.readNBytes(header, MAGIC.length, HEADER_SIZE - MAGIC.length) != HEADER_SIZE - MAGIC.length) {
+            throw new EOFException("Truncated vault header");
+        }
+        byte[] salt = Arrays.copyOfRange(header, MAGIC.length, MAGIC.length + VaultKey.SALT_SIZE);
+        return new ChunkInputStream(pis, VaultKey.of(passwd, salt), header);
+    }
+
+    public static OutputStream enc(OutputStream os, byte[] passwd) throws IOException, GeneralSecurityException {
+        if (passwd == null) return os;
+        VaultKey key = VaultKey.session(passwd);
+        byte[] header = Arrays.copyOf(MAGIC, HEADER_SIZE);
+        System.arraycopy(key.salt, 0, header, MAGIC.length, VaultKey.SALT_SIZE);
+        byte[] prefix = new byte[PREFIX_SIZE];
+        RANDOM.nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, MAGIC.length + VaultKey.SALT_SIZE, PREFIX_SIZE);
+        os.write(header);
+        return new ChunkOutputStream(os, key, header);
+    }
+
+    private static Cipher init(int mode, VaultKey key, byte[] header, int index, boolean last) throws GeneralSecurityException {
+        byte[] nonce = new byte[12];
+        System.arraycopy(header, MAGIC.length + VaultKey.SALT_SIZE, nonce, 0, PREFIX_SIZE);
+        nonce[7] = (byte) (index >>> 24);
+        nonce[8] = (byte) (index >>> 16);
+        nonce[9] = (byte) (index >>> 8);
+        nonce[10] = (byte) index;
+        nonce[11] = (byte) (last ? 1 : 0);
+        Cipher cipher = VaultKey.cipher();
+        cipher.init(mode, key.key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+        cipher.updateAAD(header);
+        return cipher;
+    }
+
+    private static class ChunkOutputStream extends FilterOutputStream {
+        private final VaultKey key;
+        private final byte[] header;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private final byte[] encrypted = new byte[CHUNK_SIZE + TAG_SIZE];
+        private final DataOutputStream output;
+        private int size;
+        private int index;
+        private boolean closed;
+
+        ChunkOutputStream(OutputStream out, VaultKey key, byte[] header) {
+            super(out);
+            this.output = new DataOutputStream(out);
+            this.key = key;
+            this.header = header;
+        }
+
+        private void emit(boolean last) throws IOException {
+            try {
+                Cipher cipher = init(Cipher.ENCRYPT_MODE, key, header, index++, last);
+                int len = cipher.doFinal(buffer, 0, size, encrypted, 0);
+                output.writeInt(last ? (len | LAST_FLAG) : len);
+                output.write(encrypted, 0, len);
+                size = 0;
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == CHUNK_SIZE) emit(false);
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (size == CHUNK_SIZE) emit(false);
+                int n = Math.min(len, CHUNK_SIZE - size);
+                System.arraycopy(b, off, buffer, size, n);
+                size += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                emit(true);
+                output.flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static class ChunkInputStream extends InputStream {
+        private final DataInputStream input;
+        private final VaultKey key;
+        private final byte[] header;
+        private final byte[] encrypted = new byte[CHUNK_SIZE + TAG_SIZE];
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int position, limit;
+        private int index;
+        private boolean last;
+
+        ChunkInputStream(InputStream in, VaultKey key, byte[] header) {
+            this.input = new DataInputStream(in);
+            this.key = key;
+            this.header = header;
+        }
+
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                if (last) return false;
+                int len;
+                try {
+                    len = input.readInt();
+                } catch (EOFException e) {
+                    throw new EOFException("Truncated vault file");
+                }
+                last = (len & LAST_FLAG) != 0;
+                len &= ~LAST_FLAG;
+                if (len < TAG_SIZE || len > encrypted.length) {
+                    throw new IOException("Broken vault chunk, length " + len);
+                }
+                input.readFully(encrypted, 0, len);
+                try {
+                    Cipher cipher = init(Cipher.DECRYPT_MODE, key, header, index++, last);
+                    limit = cipher.doFinal(encrypted, 0, len, buffer, 0);
+                    position = 0;
+                } catch (GeneralSecurityException e) {
+                    throw new IOException("Wrong password or broken vault file", e);
+                }
+                if (last && input.read() != -1) {
+                    throw new IOException("Broken vault file, data after the last chunk");
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return buffer[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, limit - position);
+            System.arraycopy(buffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
@@ -18,26 +18,64 @@ package io.github.kasukusakura.authorization.desktop;
 
 import com.google.zxing.BarcodeFormat;
 import com.google.zxing.WriterException;
-import com.google.zxing.client.j2se.MatrixToImageWriter;
 import com.google.zxing.common.BitMatrix;
 import com.google.zxing.qrcode.QRCodeWriter;
 
-import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class ZXing {
-    public static BufferedImage renderQRCode(String content, int width, int height) {
-        BitMatrix bitMatrix;
+    private static final int MATRIX_CACHE_SIZE = 64;
+    /**
+     * Keyed by {@link io.github.kasukusakura.authorization.IAuthorizationKey#getIdentity()},
+     * so the uris holding secrets are not kept as keys
+     */
+    private static final Map<Object, BitMatrix> MATRIX_CACHE = new LinkedHashMap<Object, BitMatrix>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, BitMatrix> eldest) {
+            return size() > MATRIX_CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Get the QR code of {@code content} with one bit per module, including the quiet zone.
+     * <p>
+     * The codes of the last {@value #MATRIX_CACHE_SIZE} keys are cached by {@code identity}.
+     * Invalidate it when the content of a key changes without changing its identity, e.g. renamed.
+     */
+    public static BitMatrix qrMatrix(Object identity, String content) {
+        synchronized (MATRIX_CACHE) {
+            BitMatrix matrix = MATRIX_CACHE.get(identity);
+            if (matrix != null) return matrix;
+        }
+        BitMatrix matrix;
         try {
-            bitMatrix = new QRCodeWriter().encode(
-                    content,
-                    BarcodeFormat.QR_CODE,
-                    width,
-                    height
-            );
+            // Size 0 encodes the smallest matrix, one bit per module
+            matrix = new QRCodeWriter().encode(content, BarcodeFormat.QR_CODE, 0, 0);
         } catch (WriterException e) {
             throw new RuntimeException(e);
         }
+        synchronized (MATRIX_CACHE) {
+            MATRIX_CACHE.put(identity, matrix);
+        }
+        return matrix;
+    }
 
-        return MatrixToImageWriter.toBufferedImage(bitMatrix);
+    /**
+     * Drop the cached QR code of the key with {@code identity}
+     */
+    public static void invalidate(Object identity) {
+        synchronized (MATRIX_CACHE) {
+            MATRIX_CACHE.remove(identity);
+        }
+    }
+
+    /**
+     * Drop all cached QR codes, e.g. when keys are reloaded or the password changes
+     */
+    public static void clear() {
+        synchronized (MATRIX_CACHE) {
+            MATRIX_CACHE.clear();
+        }
     }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 KasukuSakura
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.kasukusakura.authorization.desktop;
+
+import io.github.kasukusakura.authorization.IAuthorizationKey;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LogVaultTest {
+    private Path dir;
+
+    @BeforeEach
+    void createDir() throws IOException {
+        dir = Files.createTempDirectory("log-vault");
+    }
+
+    @AfterEach
+    void deleteDir() throws IOException {
+        try (var files = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static byte[] payload(String name) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        KeyStorage.encodeKey(new KeyStorage.KeySnapshot(
+                "totp", name, Collections.emptyMap(), name.getBytes()
+        ), output);
+        return output.toByteArray();
+    }
+
+    private static IAuthorizationKey key(String name) throws IOException {
+        return new LazyKey("totp", name, Collections.emptyMap(), payload(name), null);
+    }
+
+    private Set<String> reopen() throws IOException {
+        Set<String> names = new TreeSet<>();
+        try (LogVault vault = new LogVault(dir.resolve("keys.vault").toFile())) {
+            vault.open(null, key -> names.add(key.getKeyName()));
+        }
+        return names;
+    }
+
+    @Test
+    void compactKeepsLiveKeys() throws IOException {
+        try (LogVault vault = new LogVault(dir.resolve("keys.vault").toFile())) {
+            vault.open(null, key -> {
+            });
+            IAuthorizationKey a = key("a"), b = key("b"), c = key("c");
+            vault.put(a, payload("a"));
+            vault.put(b, payload("b"));
+            vault.put(c, payload("c"));
+            vault.put(b, payload("b"));
+            vault.delete(c);
+            vault.compact();
+            vault.sync();
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("a", "b")), reopen());
+    }
+
+    @Test
+    void deleteDuringCompaction() throws IOException {
+        try (LogVault vault = new LogVault(dir.resolve("keys.vault").toFile())) {
+            vault.open(null, key -> {
+            });
+            IAuthorizationKey a = key("a"), b = key("b"), c = key("c");
+            vault.put(a, payload("a"));
+            vault.put(b, payload("b"));
+            vault.compact(() -> {
+                try {
+                    vault.delete(a);
+                    vault.put(c, payload("c"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            vault.sync();
+            assertEquals(new HashSet<>(Arrays.asList(b, c)), new HashSet<>(vault.keys()));
+        }
+        assertEquals(new TreeSet<>(Arrays.asList("b", "c")), reopen());
+    }
+}